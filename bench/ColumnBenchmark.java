@@ -0,0 +1,186 @@
+package bench;
+
+import server.ColumnEvaluator;
+import server.DoubleCodec;
+import server.TCPServer;
+
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * Compares evaluating batches of operand pairs one at a time with evaluating them as columns with {@link ColumnEvaluator}, the inner loop of the <code>reduce</code> command, for several batch sizes.
+ * Columns are evaluated both with the scalar loops and, when run with <code>--add-modules jdk.incubator.vector</code>, with the Vector API.
+ * Before timing, checks that every way gives exactly the same responses as {@link TCPServer#evaluateEquation(String)}.
+ */
+public class ColumnBenchmark {
+    private static final char[] OPERATORS = {'+', '-', '*', '/', '%', '^'};
+    private static final int[] BATCH_SIZES = {16, 256, 4096, 65536};
+    private static final int PAIRS_PER_RUN = 1 << 22;
+    private static final int WARMUP_RUNS = 5;
+    private static final int MEASURED_RUNS = 10;
+
+    /**
+     * Prevents the JIT compiler from removing the loops being measured.
+     */
+    private static double sink;
+
+    public static void main(String[] args) {
+        Random random = new Random(42);
+        boolean vector = ColumnEvaluator.vectorLanes() > 0;
+        System.out.println(vector ? "Vector API enabled, " + ColumnEvaluator.vectorLanes() + " doubles per vector." : "Vector API not available, run with --add-modules jdk.incubator.vector to enable it.");
+        System.out.printf("%-8s %-10s %18s %18s %18s %8s%n", "operator", "batch", "scalar (ns/pair)", "column (ns/pair)", "vector (ns/pair)", "speedup");
+
+        for (char operator : OPERATORS) {
+            for (int batchSize : BATCH_SIZES) {
+                double[] left = new double[batchSize];
+                double[] right = new double[batchSize];
+                String[] equations = new String[batchSize];
+                for (int i = 0; i < batchSize; i++) {
+                    String arg1 = randomOperand(random, operator);
+                    String arg2 = randomOperand(random, operator);
+                    left[i] = Double.parseDouble(arg1);
+                    right[i] = Double.parseDouble(arg2);
+                    equations[i] = arg1 + operator + arg2;
+                }
+                double[] result = new double[batchSize];
+
+                verify(operator, equations, left, right, result);
+
+                int runs = Math.max(1, PAIRS_PER_RUN / batchSize);
+                for (int i = 0; i < WARMUP_RUNS; i++) {
+                    timeScalar(operator, left, right, result, runs);
+                    timeColumn(operator, left, right, result, runs);
+                    if (vector) {
+                        timeVector(operator, left, right, result, runs);
+                    }
+                }
+                long scalar = Long.MAX_VALUE;
+                long column = Long.MAX_VALUE;
+                long vectorized = Long.MAX_VALUE;
+                for (int i = 0; i < MEASURED_RUNS; i++) {
+                    scalar = Math.min(scalar, timeScalar(operator, left, right, result, runs));
+                    column = Math.min(column, timeColumn(operator, left, right, result, runs));
+                    if (vector) {
+                        vectorized = Math.min(vectorized, timeVector(operator, left, right, result, runs));
+                    }
+                }
+                double pairs = (double) runs * batchSize;
+                // Speedup of the path ColumnEvaluator.evaluate takes over the one-at-a-time switch
+                long best = vector ? vectorized : column;
+                System.out.printf("%-8s %-10d %18.3f %18.3f %18s %7.2fx%n", operator, batchSize, scalar / pairs, column / pairs,
+                        vector ? String.format("%.3f", vectorized / pairs) : "-", (double) scalar / best);
+            }
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    /**
+     * @param random   Source of randomness.
+     * @param operator Operator the operand is for. Exponents are kept small so that most results stay finite.
+     * @return A random operand, as a client would type it.
+     */
+    private static String randomOperand(Random random, char operator) {
+        if (operator == '^') {
+            return Integer.toString(random.nextInt(20)) + "." + random.nextInt(10);
+        }
+        return random.nextInt(100000) + "." + random.nextInt(1000);
+    }
+
+    /**
+     * Checks that the column evaluation gives the same response as {@link TCPServer#evaluateEquation(String)} for every pair.
+     */
+    private static void verify(char operator, String[] equations, double[] left, double[] right, double[] result) {
+        ColumnEvaluator.evaluateScalar(operator, left, right, result, left.length);
+        String[] scalar = toResponses(operator, right, result, left.length);
+        ColumnEvaluator.evaluate(operator, left, right, result, left.length);
+        String[] responses = toResponses(operator, right, result, left.length);
+        for (int i = 0; i < equations.length; i++) {
+            String expected = TCPServer.evaluateEquation(equations[i]);
+            if (!Objects.equals(scalar[i], expected) || !Objects.equals(responses[i], expected)) {
+                throw new AssertionError("Column evaluation of " + equations[i] + " gave " + scalar[i] + " (scalar) and " + responses[i] + " instead of " + expected);
+            }
+        }
+    }
+
+    /**
+     * Converts evaluated columns into the responses {@link TCPServer#evaluateEquation(String)} would give for each pair of operands.
+     *
+     * @param operator Operator that was applied.
+     * @param right    Column of second operands, needed because a modulo by zero is undefined.
+     * @param result   Column of results.
+     * @param length   Number of results to convert.
+     * @return Responses, as a client would receive them.
+     */
+    private static String[] toResponses(char operator, double[] right, double[] result, int length) {
+        String[] responses = new String[length];
+        for (int i = 0; i < length; i++) {
+            responses[i] = operator == '%' && right[i] == 0 ? "Undefined" : DoubleCodec.format(result[i]);
+        }
+        return responses;
+    }
+
+    /**
+     * Evaluates each pair through a <code>switch</code> on the operator, like {@link TCPServer#evaluateEquation(String)} does.
+     *
+     * @return Elapsed time in nanoseconds.
+     */
+    private static long timeScalar(char operator, double[] left, double[] right, double[] result, int runs) {
+        long start = System.nanoTime();
+        for (int run = 0; run < runs; run++) {
+            for (int i = 0; i < left.length; i++) {
+                switch (operator) {
+                    case '*':
+                        result[i] = left[i] * right[i];
+                        break;
+                    case '/':
+                        result[i] = left[i] / right[i];
+                        break;
+                    case '%':
+                        result[i] = left[i] % right[i];
+                        break;
+                    case '^':
+                        result[i] = Math.pow(left[i], right[i]);
+                        break;
+                    case '+':
+                        result[i] = left[i] + right[i];
+                        break;
+                    case '-':
+                        result[i] = left[i] - right[i];
+                        break;
+                }
+            }
+            sink += result[run % result.length];
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Evaluates all pairs at once with the scalar loops of {@link ColumnEvaluator#evaluateScalar(char, double[], double[], double[], int)}.
+     *
+     * @return Elapsed time in nanoseconds.
+     */
+    private static long timeColumn(char operator, double[] left, double[] right, double[] result, int runs) {
+        long start = System.nanoTime();
+        for (int run = 0; run < runs; run++) {
+            ColumnEvaluator.evaluateScalar(operator, left, right, result, left.length);
+            sink += result[run % result.length];
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Evaluates all pairs at once with {@link ColumnEvaluator#evaluate(char, double[], double[], double[], int)}, which uses the Vector API for the operators it supports.
+     *
+     * @return Elapsed time in nanoseconds.
+     */
+    private static long timeVector(char operator, double[] left, double[] right, double[] result, int runs) {
+        long start = System.nanoTime();
+        for (int run = 0; run < runs; run++) {
+            ColumnEvaluator.evaluate(operator, left, right, result, left.length);
+            sink += result[run % result.length];
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,178 @@
+package bench;
+
+import server.DoubleCodec;
+import server.TCPServer;
+
+import java.util.Random;
+
+/**
+ * Checks that {@link DoubleCodec} gives exactly the same results as <code>Double.parseDouble</code> and <code>Double.toString</code>, then compares their speed.
+ * The fast paths of {@link DoubleCodec#format(double)} are checked exhaustively, on every value they apply to, and everything else on random values.
+ */
+public class DoubleCodecBenchmark {
+    private static final int RANDOM_CHECKS = 10000000;
+    private static final int VALUES = 1 << 16;
+    private static final int WARMUP_RUNS = 5;
+    private static final int MEASURED_RUNS = 10;
+
+    /**
+     * Prevents the JIT compiler from removing the loops being measured.
+     */
+    private static long sink;
+
+    public static void main(String[] args) {
+        Random random = new Random(42);
+
+        // Every integer below 10^7, and every number below 10^5 with at most two decimals
+        for (long n = -9999999; n <= 9999999; n++) {
+            checkFormat(n);
+            checkFormat(n / 100.0);
+        }
+        checkFormat(-0.0);
+        System.out.println("Formatting fast paths match Double.toString on every value they apply to.");
+
+        for (int i = 0; i < RANDOM_CHECKS; i++) {
+            checkFormat(Double.longBitsToDouble(random.nextLong()));
+            checkFormat(random.nextInt(1000000) / Math.pow(10, random.nextInt(12)));
+            checkParse(randomOperand(random));
+        }
+        for (String operand : new String[]{"", ".", "..", "0", "0.", ".0", "00000.00000", "9007199254740992", "9007199254740993", "123456789012345678901234567890", "0.0000000000000000000001", "0.00000000000000000000001"}) {
+            checkParse(operand);
+        }
+        System.out.println("Parsing and formatting match the JDK on " + RANDOM_CHECKS + " random values.");
+
+        // Values typical of math commands: operands with a few decimals, and their results
+        String[] operands = new String[VALUES];
+        double[] integerResults = new double[VALUES];
+        double[] decimalResults = new double[VALUES];
+        String[] equations = new String[VALUES];
+        for (int i = 0; i < VALUES; i++) {
+            operands[i] = random.nextBoolean() ? Integer.toString(random.nextInt(100000)) : random.nextInt(100000) + "." + random.nextInt(100);
+            String other = Integer.toString(random.nextInt(1000));
+            char operator = "+-*/%^".charAt(random.nextInt(6));
+            equations[i] = operands[i] + operator + other;
+            integerResults[i] = random.nextInt(100000) * random.nextInt(100);
+            decimalResults[i] = Double.parseDouble(operands[i]) / (1 + random.nextInt(1000));
+        }
+
+        System.out.printf("%-20s %12s %12s %8s%n", "", "JDK (ns)", "codec (ns)", "speedup");
+        report("parse", timeJdkParse(operands), timeCodecParse(operands));
+        report("format (integers)", timeJdkFormat(integerResults), timeCodecFormat(integerResults));
+        report("format (decimals)", timeJdkFormat(decimalResults), timeCodecFormat(decimalResults));
+        long evaluate = Long.MAX_VALUE;
+        for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+            long start = System.nanoTime();
+            for (String equation : equations) {
+                sink += TCPServer.evaluateEquation(equation).length();
+            }
+            evaluate = run < WARMUP_RUNS ? evaluate : Math.min(evaluate, System.nanoTime() - start);
+        }
+        System.out.printf("%-20s %12s %12.1f%n", "evaluateEquation", "", (double) evaluate / VALUES);
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    /**
+     * @return A random operand as a client would type it, sometimes with a lot of digits, leading zeros, or no digit before or after the decimal point.
+     */
+    private static String randomOperand(Random random) {
+        StringBuilder operand = new StringBuilder();
+        int integerDigits = random.nextInt(random.nextInt(10) == 0 ? 25 : 6);
+        for (int i = 0; i < integerDigits; i++) {
+            operand.append((char) ('0' + random.nextInt(10)));
+        }
+        if (random.nextBoolean()) {
+            operand.append('.');
+            int fractionDigits = random.nextInt(random.nextInt(10) == 0 ? 30 : 4);
+            for (int i = 0; i < fractionDigits; i++) {
+                operand.append((char) ('0' + random.nextInt(10)));
+            }
+        }
+        return operand.toString();
+    }
+
+    private static void checkFormat(double d) {
+        if (!DoubleCodec.format(d).equals(Double.toString(d))) {
+            throw new AssertionError("Formatted " + Double.toString(d) + " as " + DoubleCodec.format(d));
+        }
+    }
+
+    private static void checkParse(String operand) {
+        String expected;
+        try {
+            expected = Long.toHexString(Double.doubleToRawLongBits(Double.parseDouble(operand)));
+        } catch (NumberFormatException e) {
+            expected = e.toString();
+        }
+        String actual;
+        try {
+            actual = Long.toHexString(Double.doubleToRawLongBits(DoubleCodec.parse(operand, 0, operand.length())));
+        } catch (NumberFormatException e) {
+            actual = e.toString();
+        }
+        if (!expected.equals(actual)) {
+            throw new AssertionError("Parsed \"" + operand + "\" as " + actual + " instead of " + expected);
+        }
+    }
+
+    private static void report(String name, long jdk, long codec) {
+        System.out.printf("%-20s %12.1f %12.1f %7.2fx%n", name, (double) jdk / VALUES, (double) codec / VALUES, (double) jdk / codec);
+    }
+
+    private static long timeJdkParse(String[] operands) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+            long start = System.nanoTime();
+            for (String operand : operands) {
+                try {
+                    sink += (long) Double.parseDouble(operand);
+                } catch (NumberFormatException e) {
+                    sink++;
+                }
+            }
+            best = run < WARMUP_RUNS ? best : Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static long timeCodecParse(String[] operands) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+            long start = System.nanoTime();
+            for (String operand : operands) {
+                try {
+                    sink += (long) DoubleCodec.parse(operand, 0, operand.length());
+                } catch (NumberFormatException e) {
+                    sink++;
+                }
+            }
+            best = run < WARMUP_RUNS ? best : Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static long timeJdkFormat(double[] values) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+            long start = System.nanoTime();
+            for (double value : values) {
+                sink += Double.toString(value).length();
+            }
+            best = run < WARMUP_RUNS ? best : Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static long timeCodecFormat(double[] values) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+            long start = System.nanoTime();
+            for (double value : values) {
+                sink += DoubleCodec.format(value).length();
+            }
+            best = run < WARMUP_RUNS ? best : Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+}
@@ -0,0 +1,352 @@
+package bench;
+
+import lib.Capture;
+import lib.Protocol;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Replays the traffic recorded by a server started with the <code>server.capture.path</code> system property against a running server, then reports throughput and latency per command.
+ * Each captured connection is replayed on its own connection, with its commands in their original order. Like the client, a connection waits for the response to a command before sending the next one.
+ * Commands are sent either at their original time, or later if the response to the previous command of the connection was slower than in the capture, or as fast as possible.
+ * At the original timing, a connection is also closed at the time the captured one was, rather than right after its last response, so that idle connections weigh on the server as they did.
+ */
+public class TrafficReplay {
+    /**
+     * Maximum number of connections open at once. Connections that should start beyond it wait for others to finish.
+     */
+    private static final int MAX_OPEN_CONNECTIONS = 1024;
+
+    /**
+     * Class to hold the commands of a captured connection, and the state of its replay.
+     */
+    private static class Session {
+        /**
+         * Commands of the connection as the client sent them.
+         */
+        final List<byte[]> frames = new ArrayList<>();
+
+        /**
+         * Microseconds from the first command of the capture at which each command was received.
+         */
+        final List<Long> times = new ArrayList<>();
+
+        /**
+         * Index in <code>commands</code> of each command's <code>cmd</code>.
+         */
+        final List<Integer> commands = new ArrayList<>();
+
+        /**
+         * Microseconds from the first command of the capture at which the connection was closed, or -1 if it was still open when the capture ended.
+         */
+        long closeTime = -1;
+
+        /**
+         * Index of the next command to send, or of the command waiting for its response.
+         */
+        int next;
+
+        /**
+         * Time at which the next command is due, or at which the command waiting for its response was sent, from <code>System.nanoTime</code>.
+         */
+        long due;
+
+        /**
+         * Connection replaying the session, opened once its first command is due, <code>null</code> until then.
+         */
+        SocketChannel channel;
+    }
+
+    /**
+     * <code>cmd</code> of the captured commands, in order of first appearance.
+     */
+    private static final List<String> commands = new ArrayList<>();
+
+    /**
+     * Latencies in nanoseconds of each <code>cmd</code>, indexed like <code>commands</code>. Sized for every captured command, filled as responses arrive.
+     */
+    private static long[][] latencies;
+
+    /**
+     * Number of latencies recorded for each <code>cmd</code>, indexed like <code>commands</code>.
+     */
+    private static int[] counts;
+
+    /**
+     * Number of commands that got no response because the server closed the connection.
+     */
+    private static long unanswered;
+
+    /**
+     * @param args Capture file, <code>host:port</code> of the server, and optionally <code>fast</code> to replay as fast as possible instead of at the original timing.
+     * @throws IOException If the capture file cannot be read, or the server cannot be reached.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3 || (args.length == 3 && !args[2].equals("fast"))) {
+            System.out.println("Usage: java bench.TrafficReplay <capture file> <host:port> [fast]");
+            System.exit(1);
+        }
+        int separator = args[1].lastIndexOf(':');
+        InetSocketAddress server = new InetSocketAddress(args[1].substring(0, separator), Integer.parseInt(args[1].substring(separator + 1)));
+        boolean fast = args.length == 3;
+
+        List<Session> sessions = load(Paths.get(args[0]));
+        int total = 0;
+        latencies = new long[commands.size()][];
+        counts = new int[commands.size()];
+        int[] captured = new int[commands.size()];
+        for (Session session : sessions) {
+            total += session.frames.size();
+            for (int command : session.commands) {
+                captured[command]++;
+            }
+        }
+        for (int i = 0; i < commands.size(); i++) {
+            latencies[i] = new long[captured[i]];
+        }
+        long captureMicros = sessions.stream().mapToLong(s -> Math.max(s.times.get(s.times.size() - 1), s.closeTime)).max().orElse(0);
+        System.out.printf("Replaying %d commands on %d connections, captured over %.3f seconds, %s.%n", total, sessions.size(), captureMicros / 1e6, fast ? "as fast as possible" : "at the original timing");
+
+        long start = System.nanoTime();
+        replay(sessions, server, fast, start);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("Replayed in %.3f seconds (%.0f commands per second), %d commands unanswered.%n", seconds, (total - unanswered) / seconds, unanswered);
+        System.out.printf("%-8s %10s %10s %10s %10s %10s %10s%n", "", "count", "mean (us)", "p50 (us)", "p90 (us)", "p99 (us)", "max (us)");
+        long[] all = new long[0];
+        for (int i = 0; i < commands.size(); i++) {
+            long[] answered = Arrays.copyOf(latencies[i], counts[i]);
+            report(commands.get(i), answered);
+            all = concat(all, answered);
+        }
+        report("all", all);
+    }
+
+    /**
+     * Reads a capture file and groups its commands by connection. Segments appended by successive servers are replayed one after the other.
+     *
+     * @param path Capture file.
+     * @return Connections, in the order they sent their first command.
+     * @throws IOException If the capture file cannot be read or is malformed.
+     */
+    private static List<Session> load(Path path) throws IOException {
+        List<Session> sessions = new ArrayList<>();
+        // Connection numbers restart at 0 in every segment, so the connections of a segment are numbered after those of the previous ones
+        Map<Long, Session> byConnection = new HashMap<>();
+        long segmentOffset = 0;
+        long nextSegmentOffset = 0;
+        long time = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            Capture.Record record;
+            while ((record = Capture.read(in)) != null) {
+                if (record.type == Capture.SEGMENT) {
+                    segmentOffset = nextSegmentOffset;
+                    continue;
+                }
+                time += record.time;
+                nextSegmentOffset = Math.max(nextSegmentOffset, segmentOffset + record.connection + 1);
+                if (record.type == Capture.FRAME) {
+                    Session session = byConnection.get(segmentOffset + record.connection);
+                    if (session == null) {
+                        session = new Session();
+                        byConnection.put(segmentOffset + record.connection, session);
+                        sessions.add(session);
+                    }
+                    String command = Protocol.unmarshal(new String(record.frame, StandardCharsets.UTF_8)).get("cmd");
+                    if (!commands.contains(command)) {
+                        commands.add(command);
+                    }
+                    session.frames.add(record.frame);
+                    session.times.add(time);
+                    session.commands.add(commands.indexOf(command));
+                } else if (record.type == Capture.CLOSE) {
+                    // Connections that never sent a recorded command have no close record
+                    Session session = byConnection.get(segmentOffset + record.connection);
+                    if (session != null) {
+                        session.closeTime = time;
+                    }
+                }
+            }
+        }
+        // Commands waiting behind a reduction are recorded after commands read later, so connections are ordered by their first command rather than by their first record
+        sessions.sort((a, b) -> Long.compare(a.times.get(0), b.times.get(0)));
+        // Times are made relative to the first command, so that the replay does not wait for the time the server was idle before it
+        long origin = sessions.isEmpty() ? 0 : sessions.get(0).times.get(0);
+        for (Session session : sessions) {
+            session.times.replaceAll(t -> t - origin);
+            if (session.closeTime != -1) {
+                session.closeTime -= origin;
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * Replays every connection on a single selector, and records the latency of every response.
+     *
+     * @param sessions Connections, in the order they sent their first command.
+     * @param server   Address of the server.
+     * @param fast     Whether to send commands as fast as possible instead of at their original time.
+     * @param start    Time at which the replay started, from <code>System.nanoTime</code>.
+     * @throws IOException If the server cannot be reached.
+     */
+    private static void replay(List<Session> sessions, InetSocketAddress server, boolean fast, long start) throws IOException {
+        Selector selector = Selector.open();
+        PriorityQueue<Session> due = new PriorityQueue<>((a, b) -> Long.compare(a.due, b.due));
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        int nextSession = 0;
+        int open = 0;
+        int finished = 0;
+
+        while (finished < sessions.size()) {
+            long now = System.nanoTime();
+
+            // Open the connections whose first command is due
+            while (nextSession < sessions.size() && open < MAX_OPEN_CONNECTIONS && (fast || start + sessions.get(nextSession).times.get(0) * 1000 <= now)) {
+                Session session = sessions.get(nextSession++);
+                session.channel = SocketChannel.open(server);
+                session.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                session.channel.configureBlocking(false);
+                session.channel.register(selector, SelectionKey.OP_READ, session);
+                session.due = now;
+                due.add(session);
+                open++;
+            }
+
+            // Send the commands that are due, then wait for their responses. Connections whose every command was answered are due to be closed
+            while (!due.isEmpty() && due.peek().due <= now) {
+                Session session = due.poll();
+                if (session.next == session.frames.size()) {
+                    close(session);
+                    open--;
+                    finished++;
+                    continue;
+                }
+                ByteBuffer frame = ByteBuffer.wrap(session.frames.get(session.next));
+                session.due = System.nanoTime();
+                while (frame.hasRemaining()) {
+                    session.channel.write(frame);
+                }
+            }
+
+            if (finished == sessions.size()) {
+                // The last connections were closed above, no response is coming
+                break;
+            }
+
+            // Sleep until the next command or connection is due, or a response arrives
+            long next = Long.MAX_VALUE;
+            if (!due.isEmpty()) {
+                next = due.peek().due;
+            }
+            if (nextSession < sessions.size() && open < MAX_OPEN_CONNECTIONS) {
+                next = Math.min(next, fast ? now : start + sessions.get(nextSession).times.get(0) * 1000);
+            }
+            long waitMillis = next == Long.MAX_VALUE ? 0 : (next - System.nanoTime()) / 1000000;
+            if (next != Long.MAX_VALUE && waitMillis <= 0) {
+                selector.selectNow();
+            } else {
+                selector.select(waitMillis);
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Session session = (Session) key.attachment();
+                buffer.clear();
+                int read;
+                try {
+                    read = session.channel.read(buffer);
+                } catch (IOException e) {
+                    read = -1;
+                }
+                long received = System.nanoTime();
+                for (int i = 0; i < buffer.position(); i++) {
+                    if (buffer.get(i) != '\n' || session.next == session.frames.size()) {
+                        continue;
+                    }
+                    // Every command gets a single line in response
+                    int command = session.commands.get(session.next);
+                    latencies[command][counts[command]++] = received - session.due;
+                    if (++session.next < session.frames.size()) {
+                        session.due = fast ? received : Math.max(received, start + session.times.get(session.next) * 1000);
+                        due.add(session);
+                    } else if (!fast && session.closeTime != -1) {
+                        // The captured client kept its connection open after its last response, until it closed it
+                        session.due = Math.max(received, start + session.closeTime * 1000);
+                        due.add(session);
+                    }
+                }
+                if (read == -1 || (session.next == session.frames.size() && (fast || session.closeTime == -1))) {
+                    // Either the server closed the connection, e.g. after an exit, or the captured connection ended here
+                    due.remove(session);
+                    close(session);
+                    open--;
+                    finished++;
+                }
+            }
+        }
+        selector.close();
+    }
+
+    /**
+     * Closes the connection of a session, counting the commands that got no response.
+     *
+     * @param session Session whose connection must be closed.
+     * @throws IOException If the connection cannot be closed.
+     */
+    private static void close(Session session) throws IOException {
+        unanswered += session.frames.size() - session.next;
+        session.channel.close();
+        session.frames.clear();
+    }
+
+    /**
+     * @return A new array holding the elements of <code>a</code> followed by those of <code>b</code>.
+     */
+    private static long[] concat(long[] a, long[] b) {
+        long[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    /**
+     * Prints the count, mean, and percentiles of latencies, in microseconds.
+     */
+    private static void report(String command, long[] latencies) {
+        if (latencies.length == 0) {
+            return;
+        }
+        Arrays.sort(latencies);
+        double mean = Arrays.stream(latencies).average().orElse(0) / 1000;
+        System.out.printf("%-8s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n", command, latencies.length, mean,
+                percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99), latencies[latencies.length - 1] / 1000.0);
+    }
+
+    /**
+     * @return The given percentile of sorted latencies, in microseconds.
+     */
+    private static double percentile(long[] latencies, double percentile) {
+        return latencies[(int) Math.min(latencies.length - 1, Math.round(percentile * latencies.length))] / 1000.0;
+    }
+}
@@ -0,0 +1,88 @@
+package bench;
+
+import client.TCPClient;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Compares the round-trip latency of math commands sent over TCP, over the Unix domain socket, and over UDP.
+ * Expects a server running on the same host with both the Unix domain socket and UDP enabled, e.g.
+ * <code>java -Dserver.unix.path=/tmp/math-server.sock -Dserver.udp.port=6789 server.Main</code>.
+ */
+public class TransportBenchmark {
+    private static final String SERVER_IP = "127.0.0.1";
+    private static final int PORT_NUMBER = 6789;
+    private static final int WARMUP_REQUESTS = 2000;
+
+    /**
+     * @param args Path of the server's Unix domain socket, and optionally the number of requests per transport (10000 by default).
+     * @throws IOException If a request fails.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: java bench.TransportBenchmark <unix socket path> [requests]");
+            System.exit(1);
+        }
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+
+        TCPClient tcp = new TCPClient("bench-tcp", SERVER_IP, PORT_NUMBER);
+        TCPClient unix = new TCPClient("bench-unix", Paths.get(args[0]));
+        TCPClient udp = new TCPClient("bench-udp", new InetSocketAddress(SERVER_IP, PORT_NUMBER));
+
+        System.out.printf("%-6s %10s %10s %10s %10s %10s%n", "", "mean (us)", "p50 (us)", "p90 (us)", "p99 (us)", "max (us)");
+        report("tcp", measure(tcp, requests));
+        report("unix", measure(unix, requests));
+        report("udp", measure(udp, requests));
+    }
+
+    /**
+     * Sends math commands one after the other and records how long each took to be answered.
+     *
+     * @param client   Client to send the commands with.
+     * @param requests Number of commands to record.
+     * @return Sorted latencies in nanoseconds.
+     * @throws IOException If a request fails.
+     */
+    private static long[] measure(TCPClient client, int requests) throws IOException {
+        for (int i = 0; i < WARMUP_REQUESTS; i++) {
+            check(client.buildAndSendMathCommand(i + "*2"), i * 2);
+        }
+        long[] latencies = new long[requests];
+        for (int i = 0; i < requests; i++) {
+            long start = System.nanoTime();
+            String response = client.buildAndSendMathCommand(i + "*2");
+            latencies[i] = System.nanoTime() - start;
+            check(response, i * 2);
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    /**
+     * Makes sure the server actually evaluated the command, so that a transport is not measured on errors.
+     */
+    private static void check(String response, double expected) {
+        if (!Double.toString(expected).equals(response)) {
+            throw new AssertionError("Expected " + expected + " but the server responded " + response);
+        }
+    }
+
+    /**
+     * Prints the mean and percentiles of sorted latencies, in microseconds.
+     */
+    private static void report(String transport, long[] latencies) {
+        double mean = Arrays.stream(latencies).average().orElse(0) / 1000;
+        System.out.printf("%-6s %10.1f %10.1f %10.1f %10.1f %10.1f%n", transport, mean,
+                percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99), latencies[latencies.length - 1] / 1000.0);
+    }
+
+    /**
+     * @return The given percentile of sorted latencies, in microseconds.
+     */
+    private static double percentile(long[] latencies, double percentile) {
+        return latencies[(int) Math.min(latencies.length - 1, Math.round(percentile * latencies.length))] / 1000.0;
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Contains benchmarks of the server. Each benchmark is a class with a <code>main</code> method that prints its measurements.
+ */
+package bench;
@@ -1,11 +1,14 @@
 package client;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.Scanner;
 
 /**
  * Invokes TCPClient to establish a connection to the server, then creates an infinite loop, accepting and forwarding math commands to the TCPClient class.
+ * Connects over TCP by default, over the server's Unix domain socket if started with <code>unix &lt;path&gt;</code>, or over UDP if started with <code>udp</code>.
  */
 public class Main {
     private static final String SERVER_IP = "127.0.0.1";
@@ -24,8 +27,17 @@ public class Main {
         String name = reader.nextLine();
 
         System.out.println("Establishing connection...");
-        // Creates TCP client that connects to the SERVER_IP at PORT_NUMBER
-        TCPClient client = new TCPClient(name, SERVER_IP, PORT_NUMBER);
+        TCPClient client;
+        if (args.length == 2 && args[0].equals("unix")) {
+            // Creates client that connects to the server's Unix domain socket at the given path
+            client = new TCPClient(name, Paths.get(args[1]));
+        } else if (args.length == 1 && args[0].equals("udp")) {
+            // Creates client that sends datagrams to the SERVER_IP at PORT_NUMBER
+            client = new TCPClient(name, new InetSocketAddress(SERVER_IP, PORT_NUMBER));
+        } else {
+            // Creates TCP client that connects to the SERVER_IP at PORT_NUMBER
+            client = new TCPClient(name, SERVER_IP, PORT_NUMBER);
+        }
         System.out.println("Connection established. Hello, " + name);
 
         while (true) {
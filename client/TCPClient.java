@@ -2,12 +2,23 @@ package client;
 
 import lib.Protocol;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.ConnectException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
@@ -37,6 +48,7 @@ class ShutdownHook extends Thread {
         try {
             System.out.println("\n\nSending quit to server...");
             client.outToServer.writeBytes(client.buildClientExitCommand());
+            client.outToServer.flush();
             Map<String, String> clientExitACK = Protocol.unmarshal(client.inFromServer.readLine());
 
             if (Objects.equals(clientExitACK.get("resp"), "Bye, " + client.getName())) {
@@ -53,7 +65,12 @@ class ShutdownHook extends Thread {
  */
 public class TCPClient {
     /**
-     * Data stream to write to the server.
+     * Milliseconds to wait for the response to a datagram before giving up, as datagrams may be lost.
+     */
+    private static final int DATAGRAM_TIMEOUT = 1000;
+
+    /**
+     * Data stream to write to the server. Buffered, so that each command is sent in a single write once flushed.
      */
     public DataOutputStream outToServer;
     /**
@@ -65,6 +82,16 @@ public class TCPClient {
      */
     private String name;
 
+    /**
+     * Socket used instead of the streams when the server is reached over UDP, <code>null</code> otherwise.
+     */
+    private DatagramSocket datagramSocket;
+
+    /**
+     * <code>id</code> of the next math command sent over UDP. The server echoes it, so that a response arriving after its request timed out is not taken for the response to the next one.
+     */
+    private long nextDatagramId;
+
     /**
      * Creates and sends a client hello, then validates the server's response to the client hello.
      *
@@ -74,26 +101,8 @@ public class TCPClient {
      */
     public TCPClient(String name, String host, Integer port) {
         try {
-            Map<String, String> clientHelloACK;
             Socket serverSocket = new Socket(host, port);
-
-            DataOutputStream outToServer = new DataOutputStream(serverSocket.getOutputStream());
-            BufferedReader inFromServer = new BufferedReader(new InputStreamReader(serverSocket.getInputStream()));
-
-            outToServer.writeBytes(buildClientHello(name));
-            clientHelloACK = Protocol.unmarshal(inFromServer.readLine());
-
-            if (Objects.equals(clientHelloACK.get("resp"), "Hello, " + name)) {
-                this.name = name;
-                this.outToServer = outToServer;
-                this.inFromServer = inFromServer;
-
-                Runtime.getRuntime().addShutdownHook(new ShutdownHook(this));
-            } else {
-                serverSocket.close();
-                System.out.println("Server sent incorrect acknowledgement. Try again later.");
-                Runtime.getRuntime().halt(1);
-            }
+            this.sendClientHello(name, serverSocket, new DataOutputStream(new BufferedOutputStream(serverSocket.getOutputStream())), new BufferedReader(new InputStreamReader(serverSocket.getInputStream())));
         } catch (ConnectException e) {
             System.out.println("Could not connect to server. This typically occurs because the connection was refused remotely (e.g., no process is listening on the remote address/port).");
             Runtime.getRuntime().halt(1);
@@ -103,15 +112,98 @@ public class TCPClient {
         }
     }
 
+    /**
+     * Connects to a server running on the same host through its Unix domain socket, then creates and sends a client hello and validates the server's response to it.
+     *
+     * @param name       Name of the client.
+     * @param socketPath Path of the server's Unix domain socket.
+     */
+    public TCPClient(String name, Path socketPath) {
+        try {
+            SocketChannel serverChannel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+            this.sendClientHello(name, serverChannel, new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(serverChannel))), new BufferedReader(new InputStreamReader(Channels.newInputStream(serverChannel))));
+        } catch (IOException e) {
+            System.out.println("Could not connect to server. This typically occurs if no server is listening on the Unix domain socket " + socketPath + ".");
+            Runtime.getRuntime().halt(1);
+        }
+    }
+
+    /**
+     * Prepares to send math commands to the server over UDP. Each math command is sent in a single datagram and gets a single datagram in response, so there is no hello or exit.
+     *
+     * @param name           Name of the client, only used locally.
+     * @param datagramServer Host and UDP port of the server to communicate with.
+     */
+    public TCPClient(String name, InetSocketAddress datagramServer) {
+        try {
+            this.datagramSocket = new DatagramSocket();
+            this.datagramSocket.connect(datagramServer);
+            this.datagramSocket.setSoTimeout(DATAGRAM_TIMEOUT);
+            this.name = name;
+        } catch (IOException e) {
+            System.out.println("Could not open a UDP socket to the server. Try again later.");
+            Runtime.getRuntime().halt(1);
+        }
+    }
+
+    /**
+     * Sends a client hello, then validates the server's response to the client hello. Closes the connection if the response is incorrect.
+     *
+     * @param name         Name of the client.
+     * @param connection   Connection to the server, closed if the server sends an incorrect acknowledgement.
+     * @param outToServer  Data stream to write to the server.
+     * @param inFromServer Data stream to receive from the server.
+     * @throws IOException If the server cannot be written to or read from.
+     */
+    private void sendClientHello(String name, Closeable connection, DataOutputStream outToServer, BufferedReader inFromServer) throws IOException {
+        outToServer.writeBytes(buildClientHello(name));
+        outToServer.flush();
+        Map<String, String> clientHelloACK = Protocol.unmarshal(inFromServer.readLine());
+
+        if (Objects.equals(clientHelloACK.get("resp"), "Hello, " + name)) {
+            this.name = name;
+            this.outToServer = outToServer;
+            this.inFromServer = inFromServer;
+
+            Runtime.getRuntime().addShutdownHook(new ShutdownHook(this));
+        } else {
+            connection.close();
+            System.out.println("Server sent incorrect acknowledgement. Try again later.");
+            Runtime.getRuntime().halt(1);
+        }
+    }
+
     /**
      * Builds and sends a math command to the server. Returns the server's response.
      *
      * @param input Math expression for the server to evaluate.
      * @return Server's response to the math command.
-     * @throws IOException In case we cannot read a line from the server.
+     * @throws IOException In case we cannot read a line from the server, or no datagram came back within <code>DATAGRAM_TIMEOUT</code>.
      */
     public String buildAndSendMathCommand(String input) throws IOException {
+        if (this.datagramSocket != null) {
+            // One datagram for the command, one datagram for the response
+            String id = Long.toString(this.nextDatagramId++);
+            byte[] command = buildClientMathCommand(input, id).getBytes(StandardCharsets.UTF_8);
+            this.datagramSocket.send(new DatagramPacket(command, command.length));
+            long deadline = System.nanoTime() + DATAGRAM_TIMEOUT * 1000000L;
+            while (true) {
+                int remainingMillis = (int) ((deadline - System.nanoTime()) / 1000000);
+                if (remainingMillis <= 0) {
+                    throw new SocketTimeoutException("Error - No response to datagram. {" + id + "}");
+                }
+                this.datagramSocket.setSoTimeout(remainingMillis);
+                DatagramPacket response = new DatagramPacket(new byte[2048], 2048);
+                this.datagramSocket.receive(response);
+                Map<String, String> mapResponse = Protocol.unmarshal(new String(response.getData(), 0, response.getLength(), StandardCharsets.UTF_8));
+                if (id.equals(mapResponse.get("id"))) {
+                    return mapResponse.get("resp");
+                }
+                // Late response to an earlier command that timed out, keep waiting for this one
+            }
+        }
         this.outToServer.writeBytes(buildClientMathCommand(input));
+        this.outToServer.flush();
         return Protocol.unmarshal(this.inFromServer.readLine()).get("resp");
     }
 
@@ -141,6 +233,21 @@ public class TCPClient {
         return Protocol.marshal(mapResponse);
     }
 
+    /**
+     * Builds a marshalled math command to be sent in a datagram.
+     *
+     * @param eq Equation the client wants the server to evaluate.
+     * @param id Identifier of the command, echoed by the server in its response.
+     * @return Marshalled math command, ready to be directly sent.
+     */
+    public String buildClientMathCommand(String eq, String id) {
+        Map<String, String> mapResponse = new HashMap<>();
+        mapResponse.put("cmd", "math");
+        mapResponse.put("eq", eq);
+        mapResponse.put("id", id);
+        return Protocol.marshal(mapResponse);
+    }
+
     /**
      * Builds a marshalled exit command.
      *
@@ -0,0 +1,188 @@
+package lib;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Class to write and read traffic capture files, which hold the commands clients sent to a server and when they sent them.
+ * A capture file is a sequence of records, each starting with its type:
+ * <ul>
+ *     <li><code>SEGMENT</code>: <code>MAGIC</code>, <code>VERSION</code>, and the wall-clock time in milliseconds at which a server started capturing. Every server appending to the file starts a new segment.</li>
+ *     <li><code>FRAME</code>: microseconds since the previous record of the segment, the connection's number within the segment, the length of the command, then the command itself, as the client sent it.</li>
+ *     <li><code>CLOSE</code>: microseconds since the previous record of the segment, and the number of the connection that was closed.</li>
+ * </ul>
+ * Numbers other than those of segments are written as variable-length integers, 7 bits per byte, so most frame records only take a few bytes more than the command.
+ * A frame is timestamped when its bytes were read, but may be recorded after frames read later, e.g. while it waited behind a reduction, so the microseconds since the previous record are signed. They are zigzag encoded, so small negative numbers stay short.
+ */
+public class Capture {
+    /**
+     * Type of the record starting a segment.
+     */
+    public static final byte SEGMENT = 0;
+
+    /**
+     * Type of the record of a command received from a client.
+     */
+    public static final byte FRAME = 1;
+
+    /**
+     * Type of the record of a closed connection.
+     */
+    public static final byte CLOSE = 2;
+
+    /**
+     * Starts every segment, "MCAP" in ASCII.
+     */
+    public static final int MAGIC = 0x4D434150;
+
+    /**
+     * Version of the format written by this class.
+     */
+    public static final byte VERSION = 2;
+
+    /**
+     * Class to hold a single record read from a capture file.
+     */
+    public static class Record {
+        /**
+         * One of <code>SEGMENT</code>, <code>FRAME</code>, and <code>CLOSE</code>.
+         */
+        public byte type;
+
+        /**
+         * For segments, wall-clock time in milliseconds at which the server started capturing. Otherwise, microseconds since the previous record of the segment, negative if this record happened before it.
+         */
+        public long time;
+
+        /**
+         * Number of the connection within the segment, unused for segments.
+         */
+        public int connection;
+
+        /**
+         * Command as the client sent it, including its <code>\n</code>. Only set for frames.
+         */
+        public byte[] frame;
+    }
+
+    /**
+     * Writes the record starting a segment.
+     *
+     * @param out         Stream of the capture file.
+     * @param epochMillis Wall-clock time in milliseconds at which the server started capturing.
+     * @throws IOException If the record cannot be written.
+     */
+    public static void writeSegment(DataOutputStream out, long epochMillis) throws IOException {
+        out.writeByte(SEGMENT);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(epochMillis);
+    }
+
+    /**
+     * Writes the record of a command received from a client.
+     *
+     * @param out         Stream of the capture file.
+     * @param deltaMicros Microseconds since the previous record of the segment, negative if the command was read before it.
+     * @param connection  Number of the client's connection within the segment.
+     * @param frame       Command as the client sent it.
+     * @throws IOException If the record cannot be written.
+     */
+    public static void writeFrame(DataOutputStream out, long deltaMicros, int connection, byte[] frame) throws IOException {
+        out.writeByte(FRAME);
+        writeVarLong(out, (deltaMicros << 1) ^ (deltaMicros >> 63));
+        writeVarLong(out, connection);
+        writeVarLong(out, frame.length);
+        out.write(frame);
+    }
+
+    /**
+     * Writes the record of a closed connection.
+     *
+     * @param out         Stream of the capture file.
+     * @param deltaMicros Microseconds since the previous record of the segment, negative if the connection was closed before it.
+     * @param connection  Number of the connection within the segment.
+     * @throws IOException If the record cannot be written.
+     */
+    public static void writeClose(DataOutputStream out, long deltaMicros, int connection) throws IOException {
+        out.writeByte(CLOSE);
+        writeVarLong(out, (deltaMicros << 1) ^ (deltaMicros >> 63));
+        writeVarLong(out, connection);
+    }
+
+    /**
+     * Reads the next record of a capture file.
+     *
+     * @param in Stream of the capture file.
+     * @return The record, or <code>null</code> at the end of the file.
+     * @throws IOException If the file cannot be read, is not a capture file, or ends in the middle of a record.
+     */
+    public static Record read(DataInputStream in) throws IOException {
+        int type = in.read();
+        if (type == -1) {
+            return null;
+        }
+        Record record = new Record();
+        record.type = (byte) type;
+        switch (record.type) {
+            case SEGMENT:
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Error - Not a capture file.");
+                }
+                int version = in.readByte();
+                if (version != VERSION) {
+                    throw new IOException("Error - Unsupported capture file version. {" + version + "}");
+                }
+                record.time = in.readLong();
+                break;
+            case FRAME:
+                record.time = readSignedVarLong(in);
+                record.connection = (int) readVarLong(in);
+                record.frame = new byte[(int) readVarLong(in)];
+                in.readFully(record.frame);
+                break;
+            case CLOSE:
+                record.time = readSignedVarLong(in);
+                record.connection = (int) readVarLong(in);
+                break;
+            default:
+                throw new IOException("Error - Unrecognized record type in capture file. {" + type + "}");
+        }
+        return record;
+    }
+
+    /**
+     * Writes a non-negative number 7 bits at a time, lowest bits first. The highest bit of each byte tells whether more bytes follow.
+     */
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads a number written by <code>writeVarLong</code>.
+     */
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Error - Malformed number in capture file.");
+    }
+
+    /**
+     * Reads a number zigzag encoded by the writers, which map 0, -1, 1, -2... to 0, 1, 2, 3...
+     */
+    private static long readSignedVarLong(DataInputStream in) throws IOException {
+        long value = readVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,23 @@
+package router;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates the router at the port given as the first argument, forwarding to the backend servers given as the other arguments (<code>host:port</code>).
+ */
+public class Main {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java router.Main <port> <host:port> [<host:port> ...]");
+            System.exit(1);
+        }
+        List<InetSocketAddress> backends = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            int separator = args[i].lastIndexOf(':');
+            backends.add(new InetSocketAddress(args[i].substring(0, separator), Integer.parseInt(args[i].substring(separator + 1))));
+        }
+        Router router = new Router(Integer.parseInt(args[0]), backends);
+    }
+}
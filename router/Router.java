@@ -0,0 +1,868 @@
+package router;
+
+import lib.Protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.FileHandler;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class to hold a command from a client until a backend has answered it.
+ */
+class Request {
+    /**
+     * Client who sent the command, or <code>null</code> for the router's own hello and health check commands.
+     */
+    public final Downstream client;
+
+    /**
+     * Marshalled command, forwarded to the backend as is.
+     */
+    public final byte[] command;
+
+    /**
+     * Key used to pick a backend on the hash ring, so that the same expression always goes to the same backend.
+     */
+    public final String key;
+
+    /**
+     * Marshalled response, forwarded to the client as is. <code>null</code> until the backend has answered.
+     */
+    public String response;
+
+    /**
+     * Time at which the command was last sent to a backend, from <code>System.nanoTime()</code>.
+     */
+    public long sentAt;
+
+    /**
+     * Number of backends the command has been sent to. Commands are sent again to another backend if theirs is ejected.
+     */
+    public int attempts;
+
+    /**
+     * Whether the command is sent on a backend connection of its own. A backend stops reading a connection while it evaluates a reduction on it, so a <code>reduce</code> would hold up every command pipelined behind it.
+     */
+    public boolean exclusive;
+
+    /**
+     * @param client  Client who sent the command.
+     * @param command Marshalled command.
+     * @param key     Key used to pick a backend on the hash ring.
+     */
+    public Request(Downstream client, String command, String key) {
+        this.client = client;
+        this.command = command.getBytes(StandardCharsets.UTF_8);
+        this.key = key;
+    }
+}
+
+/**
+ * Class to read new-line terminated messages from, and write messages to, a non-blocking <code>SocketChannel</code>.
+ * Writes that the socket cannot take right away are queued and sent once the channel is writable.
+ */
+class Connection {
+    /**
+     * Channel of this connection.
+     */
+    public final SocketChannel channel;
+
+    /**
+     * Key of the channel in the router's selector.
+     */
+    public SelectionKey key;
+
+    /**
+     * Bytes read but not yet split into messages.
+     */
+    private byte[] readBuffer = new byte[4096];
+
+    /**
+     * Number of bytes in <code>readBuffer</code>.
+     */
+    private int readLength;
+
+    /**
+     * Messages waiting for the channel to become writable.
+     */
+    private final Deque<ByteBuffer> writes = new ArrayDeque<>();
+
+    /**
+     * Whether to close the channel once every queued message has been written.
+     */
+    private boolean closeWhenFlushed;
+
+    /**
+     * @param channel Non-blocking channel of this connection.
+     */
+    public Connection(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Reads the bytes available on the channel.
+     *
+     * @return <code>false</code> if the other side closed the connection.
+     * @throws IOException If the channel cannot be read from.
+     */
+    public boolean read() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(2048);
+        int read = this.channel.read(buffer);
+        if (read == -1) {
+            return false;
+        }
+        if (this.readLength + read > this.readBuffer.length) {
+            byte[] larger = new byte[Math.max(this.readBuffer.length * 2, this.readLength + read)];
+            System.arraycopy(this.readBuffer, 0, larger, 0, this.readLength);
+            this.readBuffer = larger;
+        }
+        buffer.flip();
+        buffer.get(this.readBuffer, this.readLength, read);
+        this.readLength += read;
+        return true;
+    }
+
+    /**
+     * Removes and returns the first complete message read so far.
+     *
+     * @return The message, including its <code>\n</code>, or <code>null</code> if no complete message has arrived yet.
+     */
+    public String nextLine() {
+        for (int i = 0; i < this.readLength; i++) {
+            if (this.readBuffer[i] == '\n') {
+                String line = new String(this.readBuffer, 0, i + 1, StandardCharsets.UTF_8);
+                System.arraycopy(this.readBuffer, i + 1, this.readBuffer, 0, this.readLength - i - 1);
+                this.readLength -= i + 1;
+                return line;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes a message, or queues it if the channel cannot take it right away (or is still connecting).
+     *
+     * @param message Message to write.
+     * @throws IOException If the channel cannot be written to.
+     */
+    public void write(byte[] message) throws IOException {
+        this.writes.add(ByteBuffer.wrap(message));
+        if (this.channel.isConnected()) {
+            this.flush();
+        }
+    }
+
+    /**
+     * Writes as many queued messages as the channel takes, and asks to be told when it can take more.
+     *
+     * @throws IOException If the channel cannot be written to.
+     */
+    public void flush() throws IOException {
+        while (!this.writes.isEmpty()) {
+            ByteBuffer buffer = this.writes.peek();
+            this.channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            this.writes.remove();
+        }
+        this.key.interestOps(SelectionKey.OP_READ);
+        if (this.closeWhenFlushed) {
+            this.channel.close();
+        }
+    }
+
+    /**
+     * Closes the channel once every queued message has been written.
+     *
+     * @throws IOException If the channel cannot be closed.
+     */
+    public void closeWhenFlushed() throws IOException {
+        this.closeWhenFlushed = true;
+        if (this.writes.isEmpty()) {
+            this.channel.close();
+        }
+    }
+}
+
+/**
+ * Class to hold a connection from a client to the router.
+ */
+class Downstream extends Connection {
+    /**
+     * Name of the client, as sent in its hello.
+     */
+    public String name;
+
+    /**
+     * Commands of this client in the order they arrived. Responses are sent in this order, even if backends answer them in another order.
+     */
+    public final Deque<Request> pending = new ArrayDeque<>();
+
+    /**
+     * Whether the client sent <code>exit</code>. It is closed once every pending response has been written, and anything it sends afterwards is ignored.
+     */
+    public boolean exiting;
+
+    /**
+     * Connections carrying this client's <code>reduce</code> commands, one per command still running on a backend.
+     */
+    public final List<Upstream> exclusive = new ArrayList<>();
+
+    /**
+     * @param channel Non-blocking channel of the client.
+     */
+    public Downstream(SocketChannel channel) {
+        super(channel);
+    }
+
+    /**
+     * Disconnects the client, and closes the connections carrying its reductions, so that the backends cancel them.
+     */
+    public void close() {
+        try {
+            this.channel.close();
+        } catch (IOException ignored) {
+            // Already disconnected
+        }
+        for (Upstream upstream : this.exclusive) {
+            upstream.backend.exclusive.remove(upstream);
+            try {
+                upstream.channel.close();
+            } catch (IOException ignored) {
+                // Already disconnected
+            }
+        }
+        this.exclusive.clear();
+    }
+
+    /**
+     * Sends the responses of the oldest commands that have been answered, stopping at the first one still waiting for a backend.
+     * Once the client has exited and every response has been sent, the client is closed as soon as they are written.
+     * If the client cannot be written to, it is disconnected, without affecting the backend whose response is being sent.
+     */
+    public void sendResponses() {
+        try {
+            while (!this.pending.isEmpty() && this.pending.peek().response != null) {
+                Request request = this.pending.remove();
+                if (this.channel.isOpen()) {
+                    this.write(request.response.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            if (this.exiting && this.pending.isEmpty()) {
+                this.closeWhenFlushed();
+            }
+        } catch (IOException e) {
+            this.close();
+        }
+    }
+}
+
+/**
+ * Class to hold a connection from the router to a backend. Commands from any client are pipelined on persistent connections, and the backend answers them in order.
+ * A <code>reduce</code> gets a connection of its own instead, closed once it is answered.
+ */
+class Upstream extends Connection {
+    /**
+     * Backend at the other end of this connection.
+     */
+    public final Backend backend;
+
+    /**
+     * Client whose <code>reduce</code> this connection carries alone, or <code>null</code> for a persistent connection shared by every client.
+     */
+    public Downstream owner;
+
+    /**
+     * Commands sent on this connection and not answered yet, oldest first.
+     */
+    public final Deque<Request> inFlight = new ArrayDeque<>();
+
+    /**
+     * @param channel Non-blocking channel, connecting to the backend.
+     * @param backend Backend at the other end of this connection.
+     */
+    public Upstream(SocketChannel channel, Backend backend) {
+        super(channel);
+        this.backend = backend;
+    }
+
+    /**
+     * Sends a command to the backend.
+     *
+     * @param request Command to send.
+     * @throws IOException If the backend cannot be written to.
+     */
+    public void send(Request request) throws IOException {
+        request.sentAt = System.nanoTime();
+        this.inFlight.add(request);
+        this.write(request.command);
+    }
+}
+
+/**
+ * Class to hold the state of a backend server.
+ */
+class Backend {
+    /**
+     * Address of the backend.
+     */
+    public final InetSocketAddress address;
+
+    /**
+     * Persistent connections carrying the clients' commands. Empty while the backend is ejected.
+     */
+    public final List<Upstream> connections = new ArrayList<>();
+
+    /**
+     * Connections each carrying a single <code>reduce</code>, until it is answered.
+     */
+    public final List<Upstream> exclusive = new ArrayList<>();
+
+    /**
+     * Connection carrying health checks only, so that they are not stuck behind a long reduction. <code>null</code> until the next health check reconnects.
+     */
+    public Upstream health;
+
+    /**
+     * Health check waiting for an answer, or <code>null</code> if none was sent since the last one was answered.
+     */
+    public Request probe;
+
+    /**
+     * Whether the backend answered its last health check, and is on the hash ring.
+     */
+    public boolean healthy;
+
+    /**
+     * @param address Address of the backend.
+     */
+    public Backend(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * @return Number of commands sent to this backend and not answered yet.
+     */
+    public int outstanding() {
+        int outstanding = 0;
+        for (Upstream connection : this.connections) {
+            outstanding += connection.inFlight.size();
+        }
+        for (Upstream connection : this.exclusive) {
+            outstanding += connection.inFlight.size();
+        }
+        return outstanding;
+    }
+}
+
+/**
+ * Class to accept client connections and spread their commands across several backend servers.
+ * Clients speak to the router exactly as they would to a single {@link server.TCPServer}. The router answers <code>hello</code> and <code>exit</code> itself,
+ * and forwards every other command over persistent connections to a backend picked by consistent hashing on the expression, with bounded load. Each <code>reduce</code> gets a connection of its own, so that it does not hold up other commands.
+ * Backends are health checked, ejected when they fail, and put back once they answer again.
+ */
+public class Router {
+    /**
+     * Number of persistent connections to each backend.
+     */
+    private static final int CONNECTIONS_PER_BACKEND = 2;
+
+    /**
+     * Number of points each backend has on the hash ring, so that expressions are spread evenly.
+     */
+    private static final int VIRTUAL_NODES = 100;
+
+    /**
+     * A backend gets an expression only if it has fewer outstanding commands than this factor times the average, otherwise the next backend on the ring is tried.
+     */
+    private static final double LOAD_FACTOR = 1.25;
+
+    /**
+     * Number of backends a command is sent to before giving up, if they keep failing.
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * Milliseconds between two health checks of a backend.
+     */
+    private static final long HEALTH_INTERVAL = 1000;
+
+    /**
+     * Milliseconds a backend has to answer a health check before being ejected.
+     */
+    private static final long HEALTH_TIMEOUT = 2000;
+
+    /**
+     * Health check sent to backends, which must answer <code>2.0</code>.
+     */
+    private static final String PROBE = buildCommand("math", "eq", "1+1");
+
+    /**
+     * Holds the logging object so logs can be configured and added to the file.
+     */
+    public final Logger routerLogger = Logger.getLogger(Router.class.getName());
+
+    /**
+     * Selector of the event loop, for both client and backend connections.
+     */
+    private final Selector selector;
+
+    /**
+     * Every backend, healthy or not.
+     */
+    private final List<Backend> backends = new ArrayList<>();
+
+    /**
+     * Hash ring of the healthy backends.
+     */
+    private final TreeMap<Integer, Backend> ring = new TreeMap<>();
+
+    /**
+     * Constructor for this class, connects to the backends and starts listening for clients, then creates an infinite loop to forward commands and responses.
+     *
+     * @param port     Port on which the router listens to incoming requests.
+     * @param backends Addresses of the backend servers.
+     * @throws IOException If the router cannot listen on the port.
+     */
+    public Router(Integer port, List<InetSocketAddress> backends) throws IOException {
+        // Creating handler for router logging, then adding it to the logger
+        try {
+            Handler fileHandler = new FileHandler("./Router.log", true);
+            routerLogger.addHandler(fileHandler);
+            fileHandler.setLevel(Level.ALL);
+            routerLogger.setLevel(Level.ALL);
+            routerLogger.setUseParentHandlers(false);
+        } catch (IOException e) {
+            System.out.println("Could not open Router.log to write router logs.");
+            System.exit(1);
+        }
+
+        this.selector = Selector.open();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(this.selector, SelectionKey.OP_ACCEPT);
+        routerLogger.log(Level.INFO, "Router is online and listening to connections on port " + port);
+        System.out.println("Router listening to connections on port " + port);
+
+        for (InetSocketAddress address : backends) {
+            this.backends.add(new Backend(address));
+        }
+        // Connect and probe right away, so that backends are on the hash ring as soon as they answer
+        this.checkBackends();
+        long lastHealthCheck = System.currentTimeMillis();
+
+        while (true) {
+            // Wake up at least once per health check interval
+            this.selector.select(HEALTH_INTERVAL);
+            Iterator<SelectionKey> i = this.selector.selectedKeys().iterator();
+            while (i.hasNext()) {
+                SelectionKey key = i.next();
+                i.remove();
+                try {
+                    if (key.isValid() && key.isAcceptable()) {
+                        this.acceptClient((ServerSocketChannel) key.channel());
+                    }
+                    if (key.isValid() && key.isConnectable()) {
+                        Upstream upstream = (Upstream) key.attachment();
+                        upstream.channel.finishConnect();
+                        upstream.flush();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        if (key.attachment() instanceof Upstream) {
+                            this.readBackend((Upstream) key.attachment());
+                        } else {
+                            this.readClient((Downstream) key.attachment());
+                        }
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        ((Connection) key.attachment()).flush();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // Only the connection at fault is dropped, never the whole router
+                    if (key.attachment() instanceof Upstream) {
+                        this.ejectBackend(((Upstream) key.attachment()).backend, e.toString());
+                    } else if (key.attachment() instanceof Downstream) {
+                        ((Downstream) key.attachment()).close();
+                    } else {
+                        routerLogger.log(Level.WARNING, "Could not accept client. Exception: " + e);
+                    }
+                }
+            }
+
+            if (System.currentTimeMillis() - lastHealthCheck >= HEALTH_INTERVAL) {
+                lastHealthCheck = System.currentTimeMillis();
+                this.checkBackends();
+            }
+        }
+    }
+
+    /**
+     * Accepts a new client and waits for its commands.
+     *
+     * @param server Channel on which the client connected.
+     * @throws IOException If the client cannot be accepted.
+     */
+    private void acceptClient(ServerSocketChannel server) throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        Downstream client = new Downstream(channel);
+        client.key = channel.register(this.selector, SelectionKey.OP_READ, client);
+    }
+
+    /**
+     * Reads commands from a client. <code>hello</code> and <code>exit</code> are answered by the router, every other command is forwarded to a backend.
+     *
+     * @param client Client to read from.
+     * @throws IOException If the client cannot be read from.
+     */
+    private void readClient(Downstream client) throws IOException {
+        if (!client.read()) {
+            // Responses still on their way from the backends are dropped once they arrive, reductions are cancelled
+            client.close();
+            return;
+        }
+
+        String line;
+        while (client.channel.isOpen() && !client.exiting && (line = client.nextLine()) != null) {
+            Map<String, String> command;
+            try {
+                command = Protocol.unmarshal(line);
+            } catch (RuntimeException e) {
+                // A line that is not made of key=value pairs only fails its own command
+                Request request = new Request(client, line, null);
+                request.response = buildResponse("Invalid command format");
+                client.pending.add(request);
+                client.sendResponses();
+                continue;
+            }
+            if ("hello".equals(command.get("cmd"))) {
+                client.name = command.get("name");
+                Request request = new Request(client, line, null);
+                request.response = buildResponse("Hello, " + client.name);
+                client.pending.add(request);
+                System.out.println("Client \"" + client.name + "\" at IP/Port# {" + client.channel.getRemoteAddress() + "} connected to the router.");
+            } else if ("exit".equals(command.get("cmd"))) {
+                Request request = new Request(client, line, null);
+                request.response = buildResponse("Bye, " + command.get("name"));
+                client.pending.add(request);
+                // Commands sent before the exit may still be waiting for a backend, the client is closed once they are answered
+                client.exiting = true;
+                client.sendResponses();
+                System.out.println("Client \"" + client.name + "\" disconnected from the router.");
+                return;
+            } else {
+                // Same expression, same backend, so that its result cache stays effective
+                Request request = new Request(client, line, command.containsKey("eq") && "math".equals(command.get("cmd")) ? command.get("eq") : line);
+                request.exclusive = "reduce".equals(command.get("cmd"));
+                client.pending.add(request);
+                this.dispatch(request);
+            }
+            client.sendResponses();
+        }
+    }
+
+    /**
+     * Reads responses from a backend, and hands each one to the oldest command in flight on that connection.
+     *
+     * @param upstream Connection to read from.
+     * @throws IOException If the backend closed the connection.
+     */
+    private void readBackend(Upstream upstream) throws IOException {
+        if (!upstream.read()) {
+            throw new IOException("Connection closed by backend");
+        }
+
+        String line;
+        while ((line = upstream.nextLine()) != null) {
+            Request request = upstream.inFlight.poll();
+            if (request == null) {
+                throw new IOException("Unexpected response from backend: " + line.trim());
+            }
+            request.response = line;
+            if (request == upstream.backend.probe) {
+                this.probeAnswered(upstream.backend, request);
+            } else if (request.client != null) {
+                request.client.sendResponses();
+            }
+        }
+        if (upstream.owner != null && upstream.inFlight.isEmpty()) {
+            // The reduction was answered, its connection is not needed anymore
+            upstream.backend.exclusive.remove(upstream);
+            upstream.owner.exclusive.remove(upstream);
+            upstream.channel.close();
+        }
+    }
+
+    /**
+     * Sends a command to a backend picked on the hash ring, or answers it with an error if no backend is healthy.
+     *
+     * @param request Command to send.
+     * @throws IOException If a connection to a backend cannot be closed.
+     */
+    private void dispatch(Request request) throws IOException {
+        request.attempts++;
+        Backend backend = request.attempts > MAX_ATTEMPTS ? null : this.pickBackend(request.key);
+        if (backend == null) {
+            request.response = buildResponse("Error - No backend available");
+            request.client.sendResponses();
+            return;
+        }
+
+        Upstream upstream;
+        if (request.exclusive) {
+            // Connection of its own, closed if the client leaves so that the backend cancels the reduction
+            upstream = this.connect(backend);
+            upstream.owner = request.client;
+            backend.exclusive.add(upstream);
+            request.client.exclusive.add(upstream);
+        } else {
+            // Least outstanding connection of that backend
+            upstream = backend.connections.get(0);
+            for (Upstream connection : backend.connections) {
+                if (connection.inFlight.size() < upstream.inFlight.size()) {
+                    upstream = connection;
+                }
+            }
+        }
+        try {
+            upstream.send(request);
+            if (!upstream.channel.isOpen()) {
+                throw new IOException("Connection refused");
+            }
+        } catch (IOException e) {
+            // The command is in flight on the connection, ejecting the backend sends it again elsewhere
+            this.ejectBackend(backend, e.toString());
+        }
+    }
+
+    /**
+     * Picks the backend for a key: the first backend clockwise on the hash ring whose outstanding commands are below <code>LOAD_FACTOR</code> times the average.
+     * This keeps each expression on the same backend, unless that backend is busier than the others.
+     *
+     * @param key Key of the command.
+     * @return Backend to send the command to, or <code>null</code> if no backend is healthy.
+     */
+    private Backend pickBackend(String key) {
+        if (this.ring.isEmpty()) {
+            return null;
+        }
+        int healthy = 0;
+        int outstanding = 0;
+        for (Backend backend : this.backends) {
+            if (backend.healthy) {
+                healthy++;
+                outstanding += backend.outstanding();
+            }
+        }
+        double limit = Math.ceil(LOAD_FACTOR * (outstanding + 1) / healthy);
+
+        Backend leastOutstanding = null;
+        List<Backend> tried = new ArrayList<>();
+        int hash = hash(key);
+        for (Map<Integer, Backend> part : List.of(this.ring.tailMap(hash), this.ring.headMap(hash))) {
+            for (Backend backend : part.values()) {
+                if (tried.contains(backend)) {
+                    continue;
+                }
+                if (backend.outstanding() < limit) {
+                    return backend;
+                }
+                tried.add(backend);
+                if (leastOutstanding == null || backend.outstanding() < leastOutstanding.outstanding()) {
+                    leastOutstanding = backend;
+                }
+            }
+        }
+        return leastOutstanding;
+    }
+
+    /**
+     * Health checks every backend: reconnects ejected backends, sends a new health check to backends that answered the last one, and ejects backends that did not answer in time.
+     * A reconnected backend is probed as soon as its connection is established, rather than at the next health check.
+     *
+     * @throws IOException If the router cannot open a connection.
+     */
+    private void checkBackends() throws IOException {
+        for (Backend backend : this.backends) {
+            if (backend.health == null) {
+                backend.health = this.connect(backend);
+                backend.probe = new Request(null, PROBE, null);
+                backend.health.send(backend.probe);
+            } else if (backend.probe == null) {
+                backend.probe = new Request(null, PROBE, null);
+                backend.health.send(backend.probe);
+            } else if (System.nanoTime() - backend.probe.sentAt > HEALTH_TIMEOUT * 1000000) {
+                this.ejectBackend(backend, "Health check timed out");
+            }
+        }
+    }
+
+    /**
+     * Puts a backend back on the hash ring once it correctly answers a health check, or ejects it otherwise.
+     *
+     * @param backend Backend that answered.
+     * @param probe   Answered health check.
+     * @throws IOException If the router cannot open a connection.
+     */
+    private void probeAnswered(Backend backend, Request probe) throws IOException {
+        backend.probe = null;
+        if (!"2.0".equals(Protocol.unmarshal(probe.response).get("resp"))) {
+            this.ejectBackend(backend, "Wrong answer to health check: " + probe.response.trim());
+            return;
+        }
+        if (!backend.healthy) {
+            for (int i = 0; i < CONNECTIONS_PER_BACKEND; i++) {
+                backend.connections.add(this.connect(backend));
+            }
+            backend.healthy = true;
+            this.buildRing();
+            routerLogger.log(Level.INFO, "Backend " + backend.address + " is healthy.");
+            System.out.println("Backend " + backend.address + " is healthy.");
+        }
+    }
+
+    /**
+     * Removes a backend from the hash ring, closes its connections, and sends the commands it had not answered to other backends.
+     *
+     * @param backend Backend to eject.
+     * @param reason  Why the backend is ejected, for the logs.
+     * @throws IOException If a connection to the backend cannot be closed.
+     */
+    private void ejectBackend(Backend backend, String reason) throws IOException {
+        List<Request> unanswered = new ArrayList<>();
+        for (Upstream connection : backend.connections) {
+            unanswered.addAll(connection.inFlight);
+            connection.channel.close();
+        }
+        for (Upstream connection : backend.exclusive) {
+            unanswered.addAll(connection.inFlight);
+            connection.owner.exclusive.remove(connection);
+            connection.channel.close();
+        }
+        backend.exclusive.clear();
+        if (backend.health != null) {
+            backend.health.channel.close();
+        }
+        backend.connections.clear();
+        backend.health = null;
+        backend.probe = null;
+
+        if (backend.healthy) {
+            backend.healthy = false;
+            this.buildRing();
+            routerLogger.log(Level.WARNING, "Backend " + backend.address + " ejected. Reason: " + reason);
+            System.out.println("Backend " + backend.address + " ejected. Reason: " + reason);
+        }
+
+        for (Request request : unanswered) {
+            if (request.client != null && request.response == null) {
+                this.dispatch(request);
+            }
+        }
+    }
+
+    /**
+     * Opens a persistent connection to a backend, and queues a hello to it.
+     *
+     * @param backend Backend to connect to.
+     * @return The connection, still connecting.
+     * @throws IOException If the connection cannot be opened.
+     */
+    private Upstream connect(Backend backend) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        Upstream upstream = new Upstream(channel, backend);
+        upstream.key = channel.register(this.selector, SelectionKey.OP_CONNECT, upstream);
+        upstream.send(new Request(null, buildCommand("hello", "name", "router"), null));
+        try {
+            if (channel.connect(backend.address)) {
+                upstream.flush();
+            }
+        } catch (IOException e) {
+            // Connection refused right away, tried again at the next health check
+            channel.close();
+        }
+        return upstream;
+    }
+
+    /**
+     * Rebuilds the hash ring from the healthy backends.
+     */
+    private void buildRing() {
+        this.ring.clear();
+        for (Backend backend : this.backends) {
+            if (backend.healthy) {
+                for (int i = 0; i < VIRTUAL_NODES; i++) {
+                    this.ring.put(hash(backend.address + "#" + i), backend);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hashes a key for the hash ring, with 32-bit FNV-1a followed by a final mix so that similar keys land far apart.
+     *
+     * @param key Key to hash.
+     * @return Position of the key on the hash ring.
+     */
+    private static int hash(String key) {
+        int hash = 0x811c9dc5;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ b) * 0x01000193;
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+
+    /**
+     * Builds a marshalled command to send to a backend.
+     *
+     * @param cmd   Value of <code>cmd</code>.
+     * @param key   Other key of the command.
+     * @param value Value of the other key.
+     * @return Marshalled command, ready to be directly sent.
+     */
+    private static String buildCommand(String cmd, String key, String value) {
+        Map<String, String> mapCommand = new HashMap<>();
+        mapCommand.put("cmd", cmd);
+        mapCommand.put(key, value);
+        return Protocol.marshal(mapCommand);
+    }
+
+    /**
+     * Builds a marshalled response to send to a client.
+     *
+     * @param response Value of <code>resp</code>.
+     * @return Marshalled response, ready to be directly sent.
+     */
+    private static String buildResponse(String response) {
+        Map<String, String> mapResponse = new HashMap<>();
+        mapResponse.put("resp", response);
+        return Protocol.marshal(mapResponse);
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Contains the router that spreads client requests across several instances of {@link server.TCPServer}.
+ */
+package router;
@@ -0,0 +1,187 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Evaluates a file of newline-separated expressions offline, without going through a socket.
+ * The input file is memory-mapped and split into chunks on line boundaries, the chunks are evaluated in parallel, and the results are written in order, one line per expression, with the same responses as {@link TCPServer#evaluateEquation(String)}.
+ */
+public class BulkEvaluator {
+    /**
+     * Approximate size in bytes of a chunk of the input file. A chunk is extended to the end of its last line.
+     */
+    private static final int CHUNK_SIZE = 4 << 20;
+
+    /**
+     * Size in bytes of the buffer used to write the output file.
+     */
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Evaluates the input file given as the first argument, and writes the results to the output file given as the second argument.
+     * An optional third argument sets the number of threads, which defaults to the number of processors.
+     *
+     * @param args Input file, output file, and optionally the number of threads.
+     * @throws Exception If the files cannot be read or written.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || args.length > 3) {
+            System.out.println("Usage: java server.BulkEvaluator <input file> <output file> [threads]");
+            System.exit(1);
+        }
+        int threads = args.length == 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        long start = System.nanoTime();
+        long lines = evaluateFile(Paths.get(args[0]), Paths.get(args[1]), threads);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Evaluated %d lines in %.3f seconds with %d threads (%.0f lines per second).%n", lines, seconds, threads, lines / seconds);
+    }
+
+    /**
+     * Evaluates every line of the input file and writes the results to the output file.
+     *
+     * @param input   File of newline-separated expressions.
+     * @param output  File to which the results are written, one line per expression. Created or truncated.
+     * @param threads Number of threads evaluating chunks in parallel.
+     * @return Number of lines evaluated.
+     * @throws IOException          If the files cannot be read or written.
+     * @throws InterruptedException If interrupted while waiting for a chunk to be evaluated.
+     */
+    public static long evaluateFile(Path input, Path output, int threads) throws IOException, InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ);
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(output), OUTPUT_BUFFER_SIZE)) {
+            long size = channel.size();
+            long position = 0;
+            long lines = 0;
+            // Chunks being evaluated, in file order. Bounded so that the results waiting to be written do not pile up in memory
+            Deque<Future<EvaluatedChunk>> chunks = new ArrayDeque<>();
+
+            while (position < size || !chunks.isEmpty()) {
+                while (position < size && chunks.size() < threads * 2) {
+                    ByteBuffer chunk = mapChunk(channel, position, size);
+                    position += chunk.remaining();
+                    chunks.add(pool.submit(() -> evaluateChunk(chunk)));
+                }
+
+                EvaluatedChunk evaluated;
+                try {
+                    evaluated = chunks.remove().get();
+                } catch (ExecutionException e) {
+                    throw new IOException("Could not evaluate chunk of " + input, e.getCause());
+                }
+                out.write(evaluated.results);
+                lines += evaluated.lines;
+            }
+            return lines;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Maps the next chunk of the input file, from <code>position</code> to the end of the last line that starts within <code>CHUNK_SIZE</code> bytes.
+     *
+     * @param channel  Input file.
+     * @param position Start of the chunk, always the start of a line.
+     * @param size     Size of the input file.
+     * @return The mapped chunk, ending with <code>\n</code> unless it is the end of the file.
+     * @throws IOException If the file cannot be mapped.
+     */
+    private static ByteBuffer mapChunk(FileChannel channel, long position, long size) throws IOException {
+        long length = Math.min(CHUNK_SIZE, size - position);
+        while (true) {
+            ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            if (position + length == size) {
+                return chunk;
+            }
+            // Cut the chunk after its last new-line
+            for (int i = (int) length - 1; i >= 0; i--) {
+                if (chunk.get(i) == '\n') {
+                    chunk.limit(i + 1);
+                    return chunk;
+                }
+            }
+            // A single line longer than the chunk, map more of the file
+            length = Math.min(length * 2, Math.min(size - position, Integer.MAX_VALUE));
+        }
+    }
+
+    /**
+     * Evaluates every line of a chunk.
+     *
+     * @param chunk Mapped chunk of the input file.
+     * @return Results of the lines of the chunk, one per line.
+     */
+    private static EvaluatedChunk evaluateChunk(ByteBuffer chunk) {
+        ByteArrayOutputStream results = new ByteArrayOutputStream(chunk.remaining());
+        byte[] line = new byte[256];
+        int lineLength = 0;
+        long lines = 0;
+
+        while (chunk.hasRemaining()) {
+            byte b = chunk.get();
+            if (b != '\n') {
+                if (lineLength == line.length) {
+                    byte[] larger = new byte[line.length * 2];
+                    System.arraycopy(line, 0, larger, 0, lineLength);
+                    line = larger;
+                }
+                line[lineLength++] = b;
+            }
+            if (b == '\n' || !chunk.hasRemaining()) {
+                // Lines may have been logged with Windows line endings
+                if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                    lineLength--;
+                }
+                String response = TCPServer.evaluateEquation(new String(line, 0, lineLength, StandardCharsets.UTF_8));
+                byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+                results.write(bytes, 0, bytes.length);
+                results.write('\n');
+                lineLength = 0;
+                lines++;
+            }
+        }
+        return new EvaluatedChunk(results.toByteArray(), lines);
+    }
+
+    /**
+     * Results of a chunk of the input file, ready to be written to the output file.
+     */
+    private static class EvaluatedChunk {
+        /**
+         * UTF-8 encoded results, one per line.
+         */
+        final byte[] results;
+
+        /**
+         * Number of lines in the chunk.
+         */
+        final long lines;
+
+        /**
+         * @param results UTF-8 encoded results, one per line.
+         * @param lines   Number of lines in the chunk.
+         */
+        EvaluatedChunk(byte[] results, long lines) {
+            this.results = results;
+            this.lines = lines;
+        }
+    }
+}
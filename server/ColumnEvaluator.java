@@ -0,0 +1,124 @@
+package server;
+
+/**
+ * Class to apply one operator to whole columns of operands at once, instead of one equation at a time. It is the inner loop of {@link Reduction}, which evaluates the terms of a range a block at a time.
+ * Operands are stored in primitive <code>double[]</code> columns. When the JVM runs with <code>--add-modules jdk.incubator.vector</code> and {@link VectorColumnEvaluator} was compiled, <code>+</code>, <code>-</code>, <code>*</code>, and <code>/</code> are evaluated with the Vector API.
+ * Otherwise, and for <code>%</code> and <code>^</code>, each operator has its own scalar loop, which the JIT compiler may still turn into SIMD instructions.
+ * Every result is computed with the same arithmetic as {@link TCPServer#evaluateEquation(String)}, so both give exactly the same answers.
+ */
+public class ColumnEvaluator {
+    /**
+     * Column loops written for a specific instruction set or API, loaded only when the JVM supports them.
+     */
+    interface Kernel {
+        /**
+         * Applies an operator to each pair of operands, i.e. <code>result[i] = left[i] operator right[i]</code> for every <code>i</code> below <code>length</code>.
+         *
+         * @param operator Operator to apply.
+         * @param left     Column of first operands.
+         * @param right    Column of second operands.
+         * @param result   Column into which the results are written. May be the same array as one of the operands.
+         * @param length   Number of pairs of operands to evaluate.
+         * @return <code>false</code> if the operator is not supported, in which case nothing was evaluated.
+         */
+        boolean evaluate(char operator, double[] left, double[] right, double[] result, int length);
+
+        /**
+         * @return Number of doubles processed by each instruction.
+         */
+        int lanes();
+    }
+
+    /**
+     * Vector API loops, or <code>null</code> if the <code>jdk.incubator.vector</code> module is not loaded or {@link VectorColumnEvaluator} was not compiled.
+     */
+    private static final Kernel VECTOR = loadVector();
+
+    /**
+     * Loads {@link VectorColumnEvaluator} by name, so that this class compiles and runs without the incubator module.
+     *
+     * @return The Vector API loops, or <code>null</code> if they cannot be used.
+     */
+    private static Kernel loadVector() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return null;
+        }
+        try {
+            return (Kernel) Class.forName("server.VectorColumnEvaluator").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return Number of doubles the Vector API processes at once, or 0 if it is not used.
+     */
+    public static int vectorLanes() {
+        return VECTOR == null ? 0 : VECTOR.lanes();
+    }
+
+    /**
+     * Applies an operator to each pair of operands, i.e. <code>result[i] = left[i] operator right[i]</code> for every <code>i</code> below <code>length</code>, with the Vector API when it is available for the operator.
+     *
+     * @param operator One of <code>+</code>, <code>-</code>, <code>*</code>, <code>/</code>, <code>%</code>, and <code>^</code>.
+     * @param left     Column of first operands.
+     * @param right    Column of second operands.
+     * @param result   Column into which the results are written. May be the same array as one of the operands.
+     * @param length   Number of pairs of operands to evaluate.
+     * @throws IllegalArgumentException If the operator is not supported.
+     */
+    public static void evaluate(char operator, double[] left, double[] right, double[] result, int length) {
+        if (VECTOR != null && VECTOR.evaluate(operator, left, right, result, length)) {
+            return;
+        }
+        evaluateScalar(operator, left, right, result, length);
+    }
+
+    /**
+     * Applies an operator to each pair of operands with scalar loops only. Used for the operators the Vector API loops do not support, and by the benchmark to compare both.
+     *
+     * @param operator One of <code>+</code>, <code>-</code>, <code>*</code>, <code>/</code>, <code>%</code>, and <code>^</code>.
+     * @param left     Column of first operands.
+     * @param right    Column of second operands.
+     * @param result   Column into which the results are written. May be the same array as one of the operands.
+     * @param length   Number of pairs of operands to evaluate.
+     * @throws IllegalArgumentException If the operator is not supported.
+     */
+    public static void evaluateScalar(char operator, double[] left, double[] right, double[] result, int length) {
+        // One loop per operator, so that there is no branch inside the loops
+        switch (operator) {
+            case '*':
+                for (int i = 0; i < length; i++) {
+                    result[i] = left[i] * right[i];
+                }
+                break;
+            case '/':
+                for (int i = 0; i < length; i++) {
+                    result[i] = left[i] / right[i];
+                }
+                break;
+            case '%':
+                for (int i = 0; i < length; i++) {
+                    result[i] = left[i] % right[i];
+                }
+                break;
+            case '^':
+                for (int i = 0; i < length; i++) {
+                    result[i] = Math.pow(left[i], right[i]);
+                }
+                break;
+            case '+':
+                for (int i = 0; i < length; i++) {
+                    result[i] = left[i] + right[i];
+                }
+                break;
+            case '-':
+                for (int i = 0; i < length; i++) {
+                    result[i] = left[i] - right[i];
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Error - Unrecognized operator in evaluation step. {" + operator + "}");
+        }
+    }
+}
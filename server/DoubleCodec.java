@@ -0,0 +1,105 @@
+package server;
+
+/**
+ * Class to parse and format the doubles of math commands faster than <code>Double.parseDouble</code> and <code>Double.toString</code>, for the numbers clients send most.
+ * Each method has a fast path that only applies where it gives exactly the same result as the JDK, and falls back to the JDK everywhere else, so responses are unchanged.
+ */
+public class DoubleCodec {
+    /**
+     * Powers of ten that are exactly representable as doubles.
+     */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Largest integer below which every integer is exactly representable as a double.
+     */
+    private static final long MAX_EXACT_INTEGER = 1L << 53;
+
+    /**
+     * Bits of <code>-0.0</code>, which is formatted by the JDK.
+     */
+    private static final long NEGATIVE_ZERO_BITS = Double.doubleToRawLongBits(-0.0);
+
+    /**
+     * Parses an operand made of digits and at most one decimal point, such as <code>12.5</code>, <code>.5</code> or <code>5.</code>.
+     * If the digits fit in a double exactly and there are at most 22 digits after the decimal point, the operand is exactly one integer divided by an exact power of ten,
+     * and a single division rounds it the same way as <code>Double.parseDouble</code>. Anything else is handed to <code>Double.parseDouble</code>.
+     *
+     * @param string String holding the operand.
+     * @param start  Index of the first character of the operand.
+     * @param end    Index after the last character of the operand.
+     * @return The parsed double.
+     * @throws NumberFormatException If the operand is not a number, with the same message as <code>Double.parseDouble</code>.
+     */
+    public static double parse(CharSequence string, int start, int end) {
+        long digits = 0;
+        int digitCount = 0;
+        int fractionDigits = 0;
+        boolean foundDecimal = false;
+
+        for (int i = start; i < end; i++) {
+            char c = string.charAt(i);
+            if (c >= '0' && c <= '9') {
+                // Leading zeros do not count towards the 18 digits a long can hold
+                if (digits != 0 || c != '0') {
+                    digitCount++;
+                }
+                if (digitCount > 18) {
+                    return Double.parseDouble(string.subSequence(start, end).toString());
+                }
+                digits = digits * 10 + (c - '0');
+                if (foundDecimal) {
+                    fractionDigits++;
+                }
+            } else if (c == '.' && !foundDecimal) {
+                foundDecimal = true;
+            } else {
+                return Double.parseDouble(string.subSequence(start, end).toString());
+            }
+        }
+
+        // No digit at all, e.g. "" or ".", let the JDK throw its usual exception
+        if (end - start == (foundDecimal ? 1 : 0) || digits >= MAX_EXACT_INTEGER || fractionDigits >= POWERS_OF_TEN.length) {
+            return Double.parseDouble(string.subSequence(start, end).toString());
+        }
+        return digits / POWERS_OF_TEN[fractionDigits];
+    }
+
+    /**
+     * Formats a double exactly as <code>Double.toString</code> does.
+     * Integers below 10<sup>7</sup> are formatted as the integer followed by <code>.0</code>, and numbers below 10<sup>5</sup> with at most two decimals are formatted from those two decimals.
+     * Anything else is handed to <code>Double.toString</code>. Both fast paths have been checked against <code>Double.toString</code> for every value they apply to, with <code>bench.DoubleCodecBenchmark</code>.
+     *
+     * @param d Double to format.
+     * @return The same string as <code>Double.toString(d)</code>.
+     */
+    public static String format(double d) {
+        if (Double.doubleToRawLongBits(d) == NEGATIVE_ZERO_BITS) {
+            return Double.toString(d);
+        }
+        double abs = Math.abs(d);
+        if (abs < 1e7 && abs == Math.rint(abs)) {
+            return Long.toString((long) d).concat(".0");
+        }
+        if (abs < 1e5) {
+            long hundredths = Math.round(abs * 100);
+            if (hundredths / 100.0 == abs) {
+                StringBuilder string = new StringBuilder(10);
+                if (d < 0) {
+                    string.append('-');
+                }
+                string.append(hundredths / 100).append('.');
+                long fraction = hundredths % 100;
+                string.append(fraction / 10);
+                if (fraction % 10 != 0) {
+                    string.append(fraction % 10);
+                }
+                return string.toString();
+            }
+        }
+        return Double.toString(d);
+    }
+}
@@ -1,10 +1,10 @@
 package server;
 
 /**
- * Creates the server at port 6789.
+ * Creates the server at port 6789, or at the port given by the <code>server.port</code> system property.
  */
 public class Main {
-    private static final int PORT_NUMBER = 6789;
+    private static final int PORT_NUMBER = Integer.getInteger("server.port", 6789);
     public static void main(String[] args) throws Exception {
         TCPServer server = new TCPServer(PORT_NUMBER);
     }
@@ -0,0 +1,308 @@
+package server;
+
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Class to hold a sum or product over a range of integers, e.g. <code>sum i^2 for i in 1..1000000000</code>.
+ * The range is split into fixed-size chunks by a <code>ReduceTask</code> so that the partial results are always combined in the same order, no matter which thread computed them.
+ */
+class Reduction {
+    /**
+     * Number of terms a single <code>ReduceTask</code> evaluates before splitting its range in two.
+     */
+    private static final long CHUNK_SIZE = 1 << 14;
+
+    /**
+     * Number of terms evaluated at once by the {@link ColumnEvaluator}. The cancelled flag is checked between two blocks.
+     */
+    private static final int BLOCK_SIZE = 1 << 10;
+
+    /**
+     * Largest index magnitude accepted. Indexes are evaluated as doubles, which represent every integer up to 2<sup>53</sup> exactly,
+     * and staying far from <code>Long.MAX_VALUE</code> keeps the range size and the block arithmetic from overflowing.
+     */
+    private static final long MAX_INDEX = 1L << 53;
+
+    /**
+     * Client that requested this reduction, and to whom the response must be sent.
+     */
+    public final SocketChannel client;
+
+    /**
+     * Whether this is a sum (<code>true</code>) or a product (<code>false</code>).
+     */
+    private final boolean sum;
+
+    /**
+     * The term to be reduced, as sent by the client. Used for logging.
+     */
+    public final String equation;
+
+    /**
+     * Operator applied to the two operands of each term. A term made of a single operand is reduced as that operand plus zero.
+     */
+    private final char operator;
+
+    /**
+     * Constant value of the first operand, ignored if <code>leftIsIndex</code> is set.
+     */
+    private final double left;
+
+    /**
+     * Constant value of the second operand, ignored if <code>rightIsIndex</code> is set.
+     */
+    private final double right;
+
+    /**
+     * Whether the first operand is the index <code>i</code>.
+     */
+    private final boolean leftIsIndex;
+
+    /**
+     * Whether the second operand is the index <code>i</code>.
+     */
+    private final boolean rightIsIndex;
+
+    /**
+     * First index of the range, inclusive.
+     */
+    public final long from;
+
+    /**
+     * Last index of the range, inclusive.
+     */
+    public final long to;
+
+    /**
+     * Set when the client disconnects, so that running tasks stop evaluating terms.
+     */
+    private volatile boolean cancelled;
+
+    /**
+     * Result of the reduction, or an error message. Set by the thread that finishes the reduction.
+     */
+    public String response;
+
+    /**
+     * Trace of the reduce command, left in its evaluate phase while the reduction runs and finished once its response is written.
+     */
+    public RequestTrace trace;
+
+    /**
+     * Parses a reduce command from a client.
+     *
+     * @param client   Client that sent the command.
+     * @param op       Either <code>sum</code> or <code>product</code>.
+     * @param equation Term to reduce, with <code>i</code> standing for the index (e.g. <code>i^2</code>).
+     * @param from     First index of the range, inclusive.
+     * @param to       Last index of the range, inclusive.
+     * @param maxTerms Maximum number of terms in the range, so that a single command cannot hold the fork/join pool indefinitely.
+     * @throws IllegalArgumentException If the command cannot be parsed, or its range is out of bounds. The message is the error to send back to the client.
+     */
+    public Reduction(SocketChannel client, String op, String equation, String from, String to, long maxTerms) {
+        this.client = client;
+        this.equation = equation;
+
+        switch (op) {
+            case "sum":
+                this.sum = true;
+                break;
+            case "product":
+                this.sum = false;
+                break;
+            default:
+                throw new IllegalArgumentException("Error - Unrecognized reduce operation. {" + op + "} Please use 'sum' or 'product'.");
+        }
+
+        try {
+            this.from = Long.parseLong(from.trim());
+            this.to = Long.parseLong(to.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Error - Failed to parse range. {" + from + ".." + to + "}");
+        }
+        if (this.from < -MAX_INDEX || this.from > MAX_INDEX || this.to < -MAX_INDEX || this.to > MAX_INDEX) {
+            throw new IllegalArgumentException("Error - Range out of bounds. {" + this.from + ".." + this.to + "} Please use indexes between -" + MAX_INDEX + " and " + MAX_INDEX + ".");
+        }
+        // Cannot overflow, as both ends are within MAX_INDEX
+        long terms = this.to - this.from + 1;
+        if (terms > maxTerms) {
+            throw new IllegalArgumentException("Error - Too many terms in range. {" + terms + "} Please use at most " + maxTerms + " terms.");
+        }
+
+        // Split the term around its operator, e.g. "i^2" into "i", '^' and "2"
+        int operatorIndex = -1;
+        for (int i = 0; i < equation.length(); i++) {
+            if ("+-*/%^".indexOf(equation.charAt(i)) != -1) {
+                operatorIndex = i;
+                break;
+            }
+        }
+        String arg1 = operatorIndex == -1 ? equation : equation.substring(0, operatorIndex);
+        String arg2 = operatorIndex == -1 ? "0" : equation.substring(operatorIndex + 1);
+        this.operator = operatorIndex == -1 ? '+' : equation.charAt(operatorIndex);
+        this.leftIsIndex = arg1.equals("i");
+        this.rightIsIndex = arg2.equals("i");
+        this.left = this.leftIsIndex ? 0 : parseOperand(arg1);
+        this.right = this.rightIsIndex ? 0 : parseOperand(arg2);
+    }
+
+    /**
+     * Parses a constant operand of the term.
+     *
+     * @param arg Operand to parse.
+     * @return Value of the operand.
+     * @throws IllegalArgumentException If the operand is neither <code>i</code> nor a number made of digits and a decimal point.
+     */
+    private static double parseOperand(String arg) {
+        for (int i = 0; i < arg.length(); i++) {
+            if (!(arg.charAt(i) >= '0' && arg.charAt(i) <= '9') && arg.charAt(i) != '.') {
+                throw new IllegalArgumentException("Error - Unrecognized symbol. {" + arg.charAt(i) + "} Please use only 'i', digits, one operator (+, -, *, /, %, ^), and decimal points.");
+            }
+        }
+        try {
+            return DoubleCodec.parse(arg, 0, arg.length());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Error - Failed to parse double from term. {" + e + "}");
+        }
+    }
+
+    /**
+     * Evaluates the reduction. Must be called from a thread of a <code>ForkJoinPool</code>, as the range is split into subtasks.
+     *
+     * @return The result of the reduction, or an error message if one of the terms is undefined.
+     */
+    public String evaluate() {
+        // Same rule as the math command, a modulo by zero is undefined
+        if (this.operator == '%' && (this.rightIsIndex ? this.from <= 0 && this.to >= 0 : this.right == 0)) {
+            return "Undefined";
+        }
+        if (this.from > this.to) {
+            return DoubleCodec.format(this.sum ? 0 : 1);
+        }
+        return DoubleCodec.format(new ReduceTask(this, this.from, this.to).invoke());
+    }
+
+    /**
+     * Stops the evaluation of this reduction as soon as possible. Its response must then be ignored.
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    /**
+     * @return Whether this reduction has been cancelled.
+     */
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /**
+     * @return <code>sum</code> or <code>product</code>, depending on the operation of this reduction.
+     */
+    public String getOperation() {
+        return this.sum ? "sum" : "product";
+    }
+
+    /**
+     * Fills a column with the values of one operand for a block of consecutive indexes.
+     *
+     * @param column  Column to fill.
+     * @param isIndex Whether the operand is the index <code>i</code>.
+     * @param value   Constant value of the operand, ignored if <code>isIndex</code> is set.
+     * @param start   Index of the first term of the block.
+     * @param length  Number of terms in the block.
+     */
+    private static void fillColumn(double[] column, boolean isIndex, double value, long start, int length) {
+        for (int i = 0; i < length; i++) {
+            column[i] = isIndex ? start + i : value;
+        }
+    }
+
+    /**
+     * Task reducing a part of the range. Ranges larger than <code>CHUNK_SIZE</code> are split in two halves whose results are combined left to right, so the result does not depend on scheduling.
+     */
+    private static class ReduceTask extends RecursiveTask<Double> {
+        /**
+         * <code>RecursiveTask</code> is serializable, but tasks are never serialized.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Reduction this task is a part of.
+         */
+        private final Reduction reduction;
+
+        /**
+         * First index of this part of the range, inclusive.
+         */
+        private final long from;
+
+        /**
+         * Last index of this part of the range, inclusive.
+         */
+        private final long to;
+
+        /**
+         * @param reduction Reduction this task is a part of.
+         * @param from      First index of this part of the range, inclusive.
+         * @param to        Last index of this part of the range, inclusive.
+         */
+        ReduceTask(Reduction reduction, long from, long to) {
+            this.reduction = reduction;
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * Splits the range if it is too large, otherwise reduces it directly.
+         *
+         * @return Partial sum or product of this part of the range.
+         */
+        @Override
+        protected Double compute() {
+            if (this.to - this.from >= CHUNK_SIZE) {
+                long middle = this.from + (this.to - this.from) / 2;
+                ReduceTask lower = new ReduceTask(this.reduction, this.from, middle);
+                ReduceTask upper = new ReduceTask(this.reduction, middle + 1, this.to);
+                // Let another worker steal the upper half while this one works on the lower half
+                upper.fork();
+                double lowerResult = lower.compute();
+                double upperResult = upper.join();
+                return this.reduction.sum ? lowerResult + upperResult : lowerResult * upperResult;
+            }
+
+            // Evaluate the terms a block at a time, the sum or product is still accumulated in index order
+            Reduction reduction = this.reduction;
+            double[] left = new double[BLOCK_SIZE];
+            double[] right = new double[BLOCK_SIZE];
+            double[] terms = new double[BLOCK_SIZE];
+            double total = reduction.sum ? 0 : 1;
+            double compensation = 0;
+            for (long start = this.from; start <= this.to; start += BLOCK_SIZE) {
+                if (reduction.cancelled) {
+                    return Double.NaN;
+                }
+                int length = (int) Math.min(BLOCK_SIZE, this.to - start + 1);
+                fillColumn(left, reduction.leftIsIndex, reduction.left, start, length);
+                fillColumn(right, reduction.rightIsIndex, reduction.right, start, length);
+                ColumnEvaluator.evaluate(reduction.operator, left, right, terms, length);
+
+                if (reduction.sum) {
+                    // Kahan summation, so that millions of small terms do not lose precision
+                    for (int i = 0; i < length; i++) {
+                        double y = terms[i] - compensation;
+                        double t = total + y;
+                        compensation = (t - total) - y;
+                        total = t;
+                    }
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        total *= terms[i];
+                    }
+                }
+            }
+            return total;
+        }
+    }
+}
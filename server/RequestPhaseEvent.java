@@ -0,0 +1,80 @@
+package server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event timing one phase of a request, with the client and command it belongs to.
+ * Each phase has its own event type, so that recordings can be filtered and given thresholds per phase, e.g. <code>server.Evaluate#threshold=1 ms</code>.
+ * Stack traces are not recorded, they would always point at the event loop and only add overhead. The event type of each phase is nested in this class.
+ */
+@Category({"Math Server", "Request"})
+@StackTrace(false)
+abstract class RequestPhaseEvent extends Event {
+    /**
+     * Name the client gave in its hello command, or the address a datagram came from.
+     */
+    @Label("Connection")
+    public String connection;
+
+    /**
+     * Value of the <code>cmd</code> key of the request.
+     */
+    @Label("Command")
+    public String command;
+
+    /**
+     * Number of characters of the expression sent with the command, 0 if there was none.
+     */
+    @Label("Expression Length")
+    public int expressionLength;
+
+    /**
+     * Reading bytes from a client and splitting them into new-line terminated commands.
+     */
+    @Name("server.Framing")
+    @Label("Framing")
+    @Description("Reading bytes from a client and splitting them into new-line terminated commands")
+    static class Framing extends RequestPhaseEvent {
+    }
+
+    /**
+     * Unmarshalling a command with <code>Protocol.unmarshal</code>.
+     */
+    @Name("server.Unmarshal")
+    @Label("Unmarshal")
+    @Description("Unmarshalling a command into its keys and values")
+    static class Unmarshal extends RequestPhaseEvent {
+    }
+
+    /**
+     * Evaluating an expression, or submitting a reduction to the fork/join pool.
+     */
+    @Name("server.Evaluate")
+    @Label("Evaluate")
+    @Description("Evaluating an expression, or submitting a reduction to the fork/join pool")
+    static class Evaluate extends RequestPhaseEvent {
+    }
+
+    /**
+     * Writing a request to the server log and to the console.
+     */
+    @Name("server.Log")
+    @Label("Log")
+    @Description("Writing a request to the server log and to the console")
+    static class Log extends RequestPhaseEvent {
+    }
+
+    /**
+     * Marshalling a response and writing it to the socket.
+     */
+    @Name("server.Write")
+    @Label("Write")
+    @Description("Marshalling a response and writing it to the socket")
+    static class Write extends RequestPhaseEvent {
+    }
+}
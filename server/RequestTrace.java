@@ -0,0 +1,219 @@
+package server;
+
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Recording;
+
+import java.util.List;
+
+/**
+ * Class to time the phases of a request, from the moment its bytes are read until its response is written.
+ * Each phase is timed with <code>System.nanoTime</code>, for the slow-request log, and with a {@link RequestPhaseEvent} while a Java Flight Recorder recording has that phase enabled.
+ * The event loop reuses a single trace for every request but reductions, which keep theirs until their response is written, and no event is allocated while no recording is running, so tracing costs a few clock reads per phase otherwise.
+ */
+class RequestTrace {
+    /**
+     * Reading the request's bytes and splitting them into commands.
+     */
+    public static final int FRAMING = 0;
+
+    /**
+     * Parsing the command into its key=value pairs.
+     */
+    public static final int UNMARSHAL = 1;
+
+    /**
+     * Evaluating the expression, or running the reduction.
+     */
+    public static final int EVALUATE = 2;
+
+    /**
+     * Writing the request to the server log and the console.
+     */
+    public static final int LOG = 3;
+
+    /**
+     * Writing the response to the client.
+     */
+    public static final int WRITE = 4;
+
+    /**
+     * Names of the phases, indexed by the constants above.
+     */
+    public static final String[] PHASES = {"framing", "unmarshal", "evaluate", "log", "write"};
+
+    /**
+     * Event type of each phase, indexed by the constants above.
+     */
+    private static final List<Class<? extends RequestPhaseEvent>> EVENT_TYPES = List.of(
+            RequestPhaseEvent.Framing.class, RequestPhaseEvent.Unmarshal.class, RequestPhaseEvent.Evaluate.class, RequestPhaseEvent.Log.class, RequestPhaseEvent.Write.class);
+
+    /**
+     * Whether a running recording has the event type of each phase enabled. Updated whenever a recording starts or stops.
+     */
+    private static volatile boolean[] enabled = new boolean[PHASES.length];
+
+    static {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recorderInitialized(FlightRecorder recorder) {
+                updateEnabled();
+            }
+
+            @Override
+            public void recordingStateChanged(Recording recording) {
+                updateEnabled();
+            }
+        });
+    }
+
+    /**
+     * Time at which the request's first phase began.
+     */
+    private long start;
+
+    /**
+     * Time spent in each phase, in nanoseconds.
+     */
+    private final long[] nanos = new long[PHASES.length];
+
+    /**
+     * Event of each phase, <code>null</code> for phases the request did not go through or that no recording has enabled.
+     */
+    private final RequestPhaseEvent[] events = new RequestPhaseEvent[PHASES.length];
+
+    /**
+     * Phase currently being timed, or -1 if none.
+     */
+    private int phase = -1;
+
+    /**
+     * Time at which the current phase began.
+     */
+    private long phaseStart;
+
+    /**
+     * Asks the flight recorder which phases' event types are enabled, and publishes the answer to the event loop.
+     */
+    private static void updateEnabled() {
+        boolean[] enabled = new boolean[PHASES.length];
+        for (int phase = 0; phase < PHASES.length; phase++) {
+            enabled[phase] = EventType.getEventType(EVENT_TYPES.get(phase)).isEnabled();
+        }
+        RequestTrace.enabled = enabled;
+    }
+
+    /**
+     * Prepares the trace for a new request, forgetting the previous one.
+     */
+    public void reset() {
+        this.start = 0;
+        this.phase = -1;
+        for (int phase = 0; phase < PHASES.length; phase++) {
+            this.nanos[phase] = 0;
+            this.events[phase] = null;
+        }
+    }
+
+    /**
+     * Begins timing a phase, ending the current one if it was not ended.
+     *
+     * @param phase One of the phase constants.
+     */
+    public void begin(int phase) {
+        this.end();
+        RequestPhaseEvent event = null;
+        if (enabled[phase]) {
+            switch (phase) {
+                case FRAMING:
+                    event = new RequestPhaseEvent.Framing();
+                    break;
+                case UNMARSHAL:
+                    event = new RequestPhaseEvent.Unmarshal();
+                    break;
+                case EVALUATE:
+                    event = new RequestPhaseEvent.Evaluate();
+                    break;
+                case LOG:
+                    event = new RequestPhaseEvent.Log();
+                    break;
+                default:
+                    event = new RequestPhaseEvent.Write();
+                    break;
+            }
+            event.begin();
+        }
+        this.events[phase] = event;
+        this.phase = phase;
+        this.phaseStart = System.nanoTime();
+        if (this.start == 0) {
+            this.start = this.phaseStart;
+        }
+    }
+
+    /**
+     * Moves the start of the request back to when its bytes were read, so that the time it waited behind other commands of its client counts towards it.
+     *
+     * @param start Time at which the request's bytes were read, from <code>System.nanoTime</code>. Ignored if it is not before the current start.
+     */
+    public void startAt(long start) {
+        if (this.start == 0 || start - this.start < 0) {
+            this.start = start;
+        }
+    }
+
+    /**
+     * Ends the current phase. Does nothing if no phase is being timed, e.g. after an exception interrupted one and it was already ended.
+     */
+    public void end() {
+        if (this.phase != -1) {
+            this.nanos[this.phase] += System.nanoTime() - this.phaseStart;
+            if (this.events[this.phase] != null) {
+                this.events[this.phase].end();
+            }
+            this.phase = -1;
+        }
+    }
+
+    /**
+     * @return Time at which the request's first phase began, from <code>System.nanoTime</code>, or 0 if no phase began yet.
+     */
+    public long getStart() {
+        return this.start;
+    }
+
+    /**
+     * @return Nanoseconds elapsed since the request's first phase began, including the time between phases.
+     */
+    public long elapsed() {
+        return System.nanoTime() - this.start;
+    }
+
+    /**
+     * @param phase One of the phase constants.
+     * @return Nanoseconds spent in the phase.
+     */
+    public long getNanos(int phase) {
+        return this.nanos[phase];
+    }
+
+    /**
+     * Ends the current phase, then commits the event of every phase the request went through, if a recording has them enabled.
+     *
+     * @param connection Name of the client, or the address a datagram came from.
+     * @param command    Value of the <code>cmd</code> key of the request.
+     * @param expression Expression sent with the command, or <code>null</code> if there was none.
+     */
+    public void commit(String connection, String command, String expression) {
+        this.end();
+        for (RequestPhaseEvent event : this.events) {
+            if (event != null && event.shouldCommit()) {
+                event.connection = connection;
+                event.command = command;
+                event.expressionLength = expression == null ? 0 : expression.length();
+                event.commit();
+            }
+        }
+    }
+}
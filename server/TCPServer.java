@@ -5,18 +5,38 @@ import lib.Protocol;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.CharacterCodingException;
 import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.FileHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -26,6 +46,11 @@ import java.util.logging.Logger;
  * Class (shutdown hook) to gracefully closes all clients, logs relevant information, and shuts down the server.
  */
 class ShutdownHook extends Thread {
+    /**
+     * Milliseconds to wait for the event loop to close the clients, in case it is stuck.
+     */
+    private static final long CLOSE_TIMEOUT = 1000;
+
     /**
      * Server on which the shutdown hook is to be executed.
      */
@@ -41,67 +66,90 @@ class ShutdownHook extends Thread {
     }
 
     /**
-     * Close all client sockets and log relevant information.
+     * Drain the server if configured to, then have the event loop close all remaining client sockets and log relevant information.
+     * The traffic capture is closed and the Unix domain socket deleted even if closing the clients failed.
      */
     public void run() {
+        boolean closed = false;
         try {
             System.out.println("\n\nServer shutting down...");
 
-            SocketChannel client;
-            Date initialConnect;
-            String name;
-            long connectionTime;
-            // For each client in ClientStore, close socket and log information
-            for (SocketAddress key : this.server.clientStore.clients.keySet()) {
-                client = this.server.clientStore.clients.get(key);
-                initialConnect = this.server.clientStore.getInitialConnectTime(client);
-                name = this.server.clientStore.getName(client);
-                connectionTime = this.server.calculateDuration(initialConnect);
-                client.close();
-                this.server.serverLogger.log(Level.INFO, "Forced disconnection with client \"" + name + "\". Duration of connection: " + connectionTime + " seconds.");
-                System.out.println("Client \"" + name + "'s socket closed... Duration: " + connectionTime + " seconds.");
+            if (TCPServer.DRAIN_SECONDS > 0) {
+                System.out.println("Draining: no longer accepting connections, waiting up to " + TCPServer.DRAIN_SECONDS + " seconds for clients to finish...");
+                this.server.serverLogger.log(Level.INFO, "Draining server for up to " + TCPServer.DRAIN_SECONDS + " seconds.");
+                if (this.server.startDraining(TCPServer.DRAIN_SECONDS)) {
+                    this.server.serverLogger.log(Level.INFO, "Server drained.");
+                } else {
+                    this.server.serverLogger.log(Level.WARNING, "Server not drained after " + TCPServer.DRAIN_SECONDS + " seconds, forcing disconnections.");
+                }
+            }
+
+            // The client store is only safe to use from the event loop, so the event loop closes the clients
+            closed = this.server.closeClients(CLOSE_TIMEOUT);
+            if (!closed) {
+                this.server.serverLogger.log(Level.WARNING, "Event loop did not close the clients within " + CLOSE_TIMEOUT + " milliseconds.");
             }
-            this.server.serverLogger.log(Level.INFO, "Shutting down server.");
-            System.out.println("Server shut down successfully.");
         } catch (Exception e) {
             System.out.println("Error while shutting down server: " + e.getMessage());
             this.server.serverLogger.log(Level.SEVERE, "Error in shutting down server. Exception: " + e);
+        } finally {
+            // Nothing flushes the capture or removes the socket file once the JVM has exited
+            try {
+                if (this.server.capture != null) {
+                    this.server.capture.close(1000);
+                    this.server.serverLogger.log(Level.INFO, "Traffic capture closed. Records dropped: " + this.server.capture.getDropped());
+                }
+            } catch (InterruptedException e) {
+                this.server.serverLogger.log(Level.WARNING, "Interrupted while closing traffic capture.");
+            }
+            this.server.serverLogger.log(Level.INFO, "Shutting down server.");
+            this.server.deleteUnixSocket();
+            if (closed) {
+                System.out.println("Server shut down successfully.");
+            }
         }
     }
 }
 
 /**
  * Class to store data about clients and unfinished commands from clients.
+ * Clients are identified by their <code>SocketChannel</code> rather than their remote address, as every client connected through the Unix domain socket has the same (unnamed) remote address.
  */
 class ClientStore {
     /**
-     * <code>SocketAddress</code>es are mapped to their unfinished commands, stored as <code>String</code>s.
+     * <code>SocketChannel</code>s are mapped to their unfinished commands, stored as <code>String</code>s.
      */
-    private Map<SocketAddress, String> commands;
+    private Map<SocketChannel, String> commands;
 
     /**
-     * <code>SocketAddress</code>es are mapped to their client's name, stored as <code>String</code>s.
+     * <code>SocketChannel</code>s are mapped to their client's name, stored as <code>String</code>s.
      */
-    private Map<SocketAddress, String> names;
+    private Map<SocketChannel, String> names;
 
     /**
-     * <code>SocketAddress</code>es are mapped to their <code>SocketChannel</code>, used in the ShutdownHook to cleanly close client connections.
+     * <code>SocketChannel</code>s of connected clients, used in the ShutdownHook to cleanly close client connections.
      */
-    public Map<SocketAddress, SocketChannel> clients;
+    public Set<SocketChannel> clients;
 
     /**
-     * <code>SocketAddress</code>es are mapped to the <code>Date</code> the client's initial connection time.
+     * <code>SocketChannel</code>s are mapped to the <code>Date</code> the client's initial connection time.
      */
-    public Map<SocketAddress, Date> connectTimes;
+    public Map<SocketChannel, Date> connectTimes;
 
     /**
-     * Constructor for this class, simply creates a new <code>HashMap</code> to store <code>SocketAddress</code> mapped to a <code>String</code>.
+     * <code>SocketChannel</code>s are mapped to the time, from <code>System.nanoTime</code>, at which each of their complete but unhandled commands was read, so that captures and traces of queued commands start when they arrived.
+     */
+    private Map<SocketChannel, ArrayDeque<Long>> arrivals;
+
+    /**
+     * Constructor for this class, simply creates a new <code>HashMap</code> to store <code>SocketChannel</code> mapped to a <code>String</code>.
      */
     public ClientStore() {
         this.commands = new HashMap<>();
         this.names = new HashMap<>();
-        this.clients = new HashMap<>();
+        this.clients = new HashSet<>();
         this.connectTimes = new HashMap<>();
+        this.arrivals = new HashMap<>();
     }
 
     /**
@@ -109,12 +157,11 @@ class ClientStore {
      *
      * @param key  Client to which the name, initial connect time, and <code>SocketChannel</code> is associated.
      * @param name Name of the client.
-     * @throws IOException If the socket is closed.
      */
-    public void addClient(SocketChannel key, String name) throws IOException {
-        this.connectTimes.put(key.getRemoteAddress(), new Date());
-        this.clients.put(key.getRemoteAddress(), key);
-        this.names.put(key.getRemoteAddress(), name);
+    public void addClient(SocketChannel key, String name) {
+        this.connectTimes.put(key, new Date());
+        this.clients.add(key);
+        this.names.put(key, name);
     }
 
     /**
@@ -122,29 +169,28 @@ class ClientStore {
      *
      * @param key Client to remove.
      */
-    public void removeClient(SocketAddress key) {
+    public void removeClient(SocketChannel key) {
         this.connectTimes.remove(key);
         this.clients.remove(key);
         this.names.remove(key);
         this.commands.remove(key);
+        this.arrivals.remove(key);
     }
 
     /**
      * @param key Client whose initial connect time you would like to retrieve.
      * @return The initial connect time of the client.
-     * @throws IOException If the socket is closed.
      */
-    public Date getInitialConnectTime(SocketChannel key) throws IOException {
-        return this.connectTimes.get(key.getRemoteAddress());
+    public Date getInitialConnectTime(SocketChannel key) {
+        return this.connectTimes.get(key);
     }
 
     /**
      * @param key Client whose command you would like to retrieve.
      * @return The Name of the client.
-     * @throws IOException If the socket is closed.
      */
-    public String getName(SocketChannel key) throws IOException {
-        return this.names.get(key.getRemoteAddress());
+    public String getName(SocketChannel key) {
+        return this.names.get(key);
     }
 
     /**
@@ -152,32 +198,69 @@ class ClientStore {
      *
      * @param key   Client to which the command is associated.
      * @param value Command which is client is sending.
-     * @throws IOException If the socket is closed.
      */
-    public void addCommand(SocketChannel key, String value) throws IOException {
-        this.commands.merge(key.getRemoteAddress(), value, (a, b) -> a + b);
+    public void addCommand(SocketChannel key, String value) {
+        this.commands.merge(key, value, (a, b) -> a + b);
     }
 
     /**
-     * Removes and returns the command associated with a client.
+     * Creates/Updates a client's command string, and remembers when every command completed by it was read, to be retrieved with <code>nextArrival</code>.
      *
-     * @param key Client whose command you would like to retrieve and remove.
-     * @return The command that was just removed.
-     * @throws IOException If the socket is closed.
+     * @param key      Client to which the command is associated.
+     * @param value    Command which is client is sending.
+     * @param readTime Time at which <code>value</code> was read, from <code>System.nanoTime</code>.
      */
-    public String removeCommand(SocketChannel key) throws IOException {
-        return this.commands.remove(key.getRemoteAddress());
+    public void addCommand(SocketChannel key, String value, long readTime) {
+        this.addCommand(key, value);
+        ArrayDeque<Long> arrivals = this.arrivals.computeIfAbsent(key, k -> new ArrayDeque<>());
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) == '\n') {
+                arrivals.add(readTime);
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the time at which the client's oldest unhandled command was read. Must be called once for every command returned by <code>nextCommand</code>, if its bytes were added with a read time.
+     *
+     * @param key Client whose command was just retrieved.
+     * @return Time at which the command was read, from <code>System.nanoTime</code>, or the current time if it is unknown.
+     */
+    public long nextArrival(SocketChannel key) {
+        ArrayDeque<Long> arrivals = this.arrivals.get(key);
+        Long arrival = arrivals == null ? null : arrivals.poll();
+        return arrival == null ? System.nanoTime() : arrival;
+    }
+
+    /**
+     * Checks if part of a command from a client has arrived, without the rest of it or the <code>\n</code> ending it.
+     *
+     * @param key Client to check.
+     * @return Whether the client is in the middle of sending a command.
+     */
+    public boolean hasPartialCommand(SocketChannel key) {
+        return this.commands.containsKey(key);
     }
 
     /**
-     * Checks if a client's command has fully arrived by seeing if the command ends with <code>\n</code>, as the protocol defines that all messages end with <code>\n</code>.
+     * Removes and returns the first complete command of a client. A command is complete once it ends with <code>\n</code>, as the protocol defines that all messages end with <code>\n</code>.
+     * Anything received after the first <code>\n</code> is kept for the next call.
      *
-     * @param key Client whose command you would like to check if it has fully arrived.
-     * @return Whether the full command has arrived or not.
-     * @throws IOException If the socket is closed.
+     * @param key Client whose next command you would like to retrieve and remove.
+     * @return The command that was just removed, or <code>null</code> if no complete command has arrived yet.
      */
-    public Boolean isCommandComplete(SocketChannel key) throws IOException {
-        return this.commands.get(key.getRemoteAddress()).endsWith("\n");
+    public String nextCommand(SocketChannel key) {
+        String commands = this.commands.get(key);
+        int end = commands == null ? -1 : commands.indexOf('\n');
+        if (end == -1) {
+            return null;
+        }
+        if (end == commands.length() - 1) {
+            this.commands.remove(key);
+        } else {
+            this.commands.put(key, commands.substring(end + 1));
+        }
+        return commands.substring(0, end + 1);
     }
 }
 
@@ -195,6 +278,120 @@ public class TCPServer {
      */
     public final ClientStore clientStore;
 
+    /**
+     * Maximum number of threads used to evaluate reductions. Configured with the <code>server.reduce.parallelism</code> system property, defaults to the number of processors.
+     */
+    private static final int REDUCE_PARALLELISM = Integer.getInteger("server.reduce.parallelism", Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Maximum number of terms of a single reduction, so that one client cannot hold the fork/join pool indefinitely. Configured with the <code>server.reduce.max.terms</code> system property, defaults to 10<sup>10</sup>.
+     */
+    private static final long REDUCE_MAX_TERMS = Long.getLong("server.reduce.max.terms", 10000000000L);
+
+    /**
+     * Path of the Unix domain socket to listen on, in addition to the TCP port. Configured with the <code>server.unix.path</code> system property, disabled if not set.
+     */
+    private static final Path UNIX_SOCKET_PATH = System.getProperty("server.unix.path") == null ? null : Paths.get(System.getProperty("server.unix.path"));
+
+    /**
+     * UDP port to listen on for datagrams holding a single math command. Configured with the <code>server.udp.port</code> system property, disabled if not set.
+     */
+    private static final Integer UDP_PORT = Integer.getInteger("server.udp.port");
+
+    /**
+     * Whether to bind with <code>SO_REUSEPORT</code>, so that several server processes share the same port. Configured with the <code>server.reuseport</code> system property.
+     */
+    private static final boolean REUSE_PORT = Boolean.getBoolean("server.reuseport");
+
+    /**
+     * Number of seconds the server keeps serving its clients after being asked to shut down, without accepting new ones. Configured with the <code>server.drain.seconds</code> system property.
+     * If 0, the default, all clients are disconnected immediately.
+     */
+    public static final int DRAIN_SECONDS = Integer.getInteger("server.drain.seconds", 0);
+
+    /**
+     * Path of the file to which the hello, math, and exit commands of clients are recorded, to be replayed by <code>bench.TrafficReplay</code>. Configured with the <code>server.capture.path</code> system property, disabled if not set.
+     * If the file exists, the new commands are appended to it.
+     */
+    private static final Path CAPTURE_PATH = System.getProperty("server.capture.path") == null ? null : Paths.get(System.getProperty("server.capture.path"));
+
+    /**
+     * Records the commands of clients to <code>CAPTURE_PATH</code>, or <code>null</code> if traffic capture is disabled.
+     */
+    public final TrafficCapture capture;
+
+    /**
+     * Requests that take at least this many microseconds, from reading their bytes to writing their response, are written to the slow-request log.
+     * Configured with the <code>server.slowlog.micros</code> system property, disabled if not set.
+     */
+    private static final long SLOW_REQUEST_MICROS = Long.getLong("server.slowlog.micros", -1);
+
+    /**
+     * Only one slow request out of this many is written to the slow-request log, so that a burst of slow requests does not slow the server down further.
+     * Configured with the <code>server.slowlog.sample</code> system property, defaults to 1 (every slow request).
+     */
+    private static final int SLOW_REQUEST_SAMPLE = Math.max(1, Integer.getInteger("server.slowlog.sample", 1));
+
+    /**
+     * Holds the logging object of the slow-request log, written to <code>SlowRequests.log</code>.
+     */
+    public final Logger slowRequestLogger = Logger.getLogger(TCPServer.class.getName() + ".slow");
+
+    /**
+     * Trace of the request being handled, reused for every request as the event loop handles one at a time. Replaced whenever a reduction takes it along.
+     */
+    private RequestTrace trace = new RequestTrace();
+
+    /**
+     * Number of slow requests seen so far, used to sample the slow-request log. Only accessed by the event loop.
+     */
+    private long slowRequests;
+
+    /**
+     * Identifies the file of the Unix domain socket this server created, or <code>null</code> if it does not listen on one.
+     */
+    private Object unixSocketFileKey;
+
+    /**
+     * Set by the ShutdownHook to make the event loop stop accepting new clients and close the connected ones once idle.
+     */
+    private volatile boolean draining;
+
+    /**
+     * Released by the event loop once draining and no client is left.
+     */
+    private final CountDownLatch drained = new CountDownLatch(1);
+
+    /**
+     * Set by the ShutdownHook to make the event loop close every client and stop.
+     */
+    private volatile boolean closing;
+
+    /**
+     * Released by the event loop once every client is closed.
+     */
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    /**
+     * Selector of the event loop. Woken up by the fork/join pool whenever a reduction finishes.
+     */
+    private final Selector selector;
+
+    /**
+     * Work-stealing pool on which reductions are evaluated, so that the event loop never blocks on them.
+     */
+    private final ForkJoinPool reducePool = new ForkJoinPool(REDUCE_PARALLELISM);
+
+    /**
+     * Clients are mapped to the reduction they are waiting for. Only accessed by the event loop.
+     */
+    private final Map<SocketChannel, Reduction> runningReductions = new HashMap<>();
+
+    /**
+     * Reductions whose response has not been sent yet. Filled by the fork/join pool, emptied by the event loop.
+     */
+    private final Queue<Reduction> finishedReductions = new ConcurrentLinkedQueue<>();
+
     /**
      * Constructor for this class, starts a TCP server, then creates an infinite loop to listen and respond to client messages.
      *
@@ -213,23 +410,101 @@ public class TCPServer {
             System.out.println("Could not open TCPServer.log to write server logs.");
             System.exit(1);
         }
+        if (SLOW_REQUEST_MICROS >= 0) {
+            try {
+                Handler fileHandler = new FileHandler("./SlowRequests.log", true);
+                slowRequestLogger.addHandler(fileHandler);
+                fileHandler.setLevel(Level.ALL);
+                slowRequestLogger.setLevel(Level.ALL);
+                slowRequestLogger.setUseParentHandlers(false);
+            } catch (IOException e) {
+                System.out.println("Could not open SlowRequests.log to write slow requests.");
+                System.exit(1);
+            }
+        }
+
+        TrafficCapture capture = null;
+        if (CAPTURE_PATH != null) {
+            try {
+                capture = new TrafficCapture(CAPTURE_PATH);
+                serverLogger.log(Level.INFO, "Capturing traffic to " + CAPTURE_PATH);
+            } catch (IOException e) {
+                System.out.println("Could not open " + CAPTURE_PATH + " to capture traffic.");
+                System.exit(1);
+            }
+        }
+        this.capture = capture;
 
         // Setup non-blocking IO
         Selector selector = Selector.open();
+        this.selector = selector;
         this.clientStore = new ClientStore();
         ServerSocketChannel server = ServerSocketChannel.open();
+        if (REUSE_PORT) {
+            // Several server processes may bind to the same port, the kernel spreads new connections across them
+            if (!server.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                System.out.println("SO_REUSEPORT is not supported on this platform.");
+                System.exit(1);
+            }
+            server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
         server.bind(new InetSocketAddress(port));
         server.configureBlocking(false);
         server.register(selector, SelectionKey.OP_ACCEPT);
         serverLogger.log(Level.INFO, "Server is online and listening to connections on port " + port);
         System.out.println("Server listening to connections on port " + port);
 
+        // Listen on a Unix domain socket for clients running on the same host
+        if (UNIX_SOCKET_PATH != null) {
+            // A socket left behind by a server that did not shut down cleanly is replaced, anything else at that path is not ours to delete
+            if (Files.exists(UNIX_SOCKET_PATH, LinkOption.NOFOLLOW_LINKS)) {
+                if (!isSocket(UNIX_SOCKET_PATH)) {
+                    System.out.println("Could not listen on Unix domain socket " + UNIX_SOCKET_PATH + ", a file that is not a socket already exists at that path.");
+                    System.exit(1);
+                }
+                Files.delete(UNIX_SOCKET_PATH);
+            }
+            ServerSocketChannel unixServer = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            unixServer.bind(UnixDomainSocketAddress.of(UNIX_SOCKET_PATH));
+            this.unixSocketFileKey = Files.readAttributes(UNIX_SOCKET_PATH, BasicFileAttributes.class).fileKey();
+            unixServer.configureBlocking(false);
+            unixServer.register(selector, SelectionKey.OP_ACCEPT);
+            serverLogger.log(Level.INFO, "Server is online and listening to connections on Unix domain socket " + UNIX_SOCKET_PATH);
+            System.out.println("Server listening to connections on Unix domain socket " + UNIX_SOCKET_PATH);
+        }
+
+        // Listen for datagrams, each holding a single math command
+        if (UDP_PORT != null) {
+            DatagramChannel datagramServer = DatagramChannel.open();
+            if (REUSE_PORT) {
+                datagramServer.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            datagramServer.bind(new InetSocketAddress(UDP_PORT));
+            datagramServer.configureBlocking(false);
+            datagramServer.register(selector, SelectionKey.OP_READ);
+            serverLogger.log(Level.INFO, "Server is online and listening to datagrams on UDP port " + UDP_PORT);
+            System.out.println("Server listening to datagrams on UDP port " + UDP_PORT);
+        }
+
         Runtime.getRuntime().addShutdownHook(new ShutdownHook(this));
         System.out.println("Press Ctrl+C to gracefully shut down server");
 
         while (true) {
             // Find channels the server needs to handle
             selector.select();
+
+            if (this.closing) {
+                this.forceCloseClients();
+                this.closed.countDown();
+                return;
+            }
+
+            // Send the results of reductions that finished since the last select
+            Reduction reduction;
+            while ((reduction = this.finishedReductions.poll()) != null) {
+                this.finishReduction(reduction);
+            }
+
             Set<SelectionKey> keys = selector.selectedKeys();
             Iterator<SelectionKey> i = keys.iterator();
             while (i.hasNext()) {
@@ -241,69 +516,435 @@ public class TCPServer {
                     client.configureBlocking(false);
                     client.register(selector, SelectionKey.OP_READ);
                 }
+                // Need to read a datagram
+                if (key.isReadable() && key.channel() instanceof DatagramChannel) {
+                    this.handleDatagram((DatagramChannel) key.channel());
+                }
                 // Need to read from client
-                if (key.isReadable()) {
+                else if (key.isReadable()) {
                     SocketChannel client = (SocketChannel) key.channel();
-                    // Read 2048 bytes into buffer, then convert to string
+                    // Read 2048 bytes into buffer, then convert to string. Reading counts towards the framing of the first command handled
+                    RequestTrace trace = this.trace;
+                    trace.reset();
+                    trace.begin(RequestTrace.FRAMING);
                     String command = this.readFromBuffer(client, 2048);
-                    // Inform client store about this command
-                    this.clientStore.addCommand(client, command);
-
-                    // If command is complete (new-line terminated), handle command
-                    if (this.clientStore.isCommandComplete(client)) {
-                        // Parse request
-                        Map<String, String> request = Protocol.unmarshal(this.clientStore.removeCommand(client));
-                        try {
-                            switch (request.get("cmd")) {
-                                case "hello": {
-                                    // Open connection with client
-                                    String remoteAddress = client.getRemoteAddress().toString();
-                                    client.write(buildClientHelloACK(request.get("name")));
-                                    System.out.println("Client \"" + request.get("name") + "\" at IP/Port# {" + remoteAddress + "} connected to the server.");
-                                    this.clientStore.addClient(client, request.get("name"));
-                                    serverLogger.log(Level.INFO, "Client \"" + request.get("name") + "\" connected. IP/Port#: {" + remoteAddress + "}");
-                                    break;
-                                }
-                                case "math": {
-                                    // Evaluate equation from client
-                                    String equationResponse = evaluateEquation(request.get("eq"));
-                                    client.write(buildServerResponse(equationResponse));
-                                    serverLogger.log(Level.INFO, "Client \"" + this.clientStore.getName(client) + "\" entered equation : " + request.get("eq") + ". Response : " + equationResponse);
-                                    System.out.println("Client \"" + this.clientStore.getName(client) + "\" entered equation : " + request.get("eq") + ". Response : " + equationResponse);
-                                    break;
-                                }
-                                case "exit": {
-                                    // Close connection with client
-                                    client.write(buildClientExitACK(request.get("name")));
-                                    String name = this.clientStore.getName(client);
-                                    Date initialConnect = this.clientStore.getInitialConnectTime(client);
-                                    SocketAddress clientSocketAddress = client.getRemoteAddress();
-                                    long connectionTime = calculateDuration(initialConnect);
-                                    client.close();
-                                    this.clientStore.removeClient(clientSocketAddress);
-
-                                    System.out.println("Client \"" + name + "\" disconnected. Duration: " + connectionTime + " seconds.");
-                                    serverLogger.log(Level.INFO, "Client \"" + name + "\" disconnected. Duration of connection: " + connectionTime + " seconds.");
-                                    break;
-                                }
-                                default: {
-                                    // Unknown command
-                                    client.write(buildServerResponse("Unknown command"));
-                                    serverLogger.log(Level.INFO, "Client \"" + this.clientStore.getName(client) + "\" entered unknown command: " + request.get("cmd"));
-                                    System.out.println("Client \"" + this.clientStore.getName(client) + "\" entered unknown command: " + request.get("cmd"));
-                                    break;
-                                }
-                            }
-                        } catch (NullPointerException e) {
-                            // Could happen if a client does not provide an expected key
-                            client.write(buildServerResponse("Invalid command format"));
-                            serverLogger.log(Level.INFO, "Client \"" + this.clientStore.getName(client) + "\" sent an invalid command format: " + Protocol.marshal(request));
-                        }
+                    if (command == null) {
+                        // Client left without sending an exit command
+                        this.disconnectClient(client);
+                    } else {
+                        // Inform client store about this command, then handle every complete command. Commands are timestamped with the same clock reading that began their framing
+                        this.clientStore.addCommand(client, command, trace.getStart());
+                        this.handleCommands(client, trace);
                     }
                 }
                 // Channel handling complete, move onto next one
                 i.remove();
             }
+
+            if (this.draining) {
+                this.drain();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting new connections and datagrams, then waits for the connected clients to be closed by the event loop once they have no request in flight.
+     * Called by the ShutdownHook when <code>DRAIN_SECONDS</code> is positive.
+     *
+     * @param seconds Maximum number of seconds to wait.
+     * @return Whether every client was closed before the deadline.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public boolean startDraining(long seconds) throws InterruptedException {
+        this.draining = true;
+        this.selector.wakeup();
+        return this.drained.await(seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Makes the event loop close every remaining client, cancel their reductions, and stop, then waits for it to be done.
+     * Called by the ShutdownHook, which must not use the client store itself while the event loop is running.
+     *
+     * @param millis Maximum number of milliseconds to wait.
+     * @return Whether the event loop closed every client before the deadline.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public boolean closeClients(long millis) throws InterruptedException {
+        this.closing = true;
+        this.selector.wakeup();
+        return this.closed.await(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs on the event loop when the ShutdownHook asks it to close the clients. Closes every client, whether or not it is idle, and logs how long it was connected.
+     *
+     * @throws IOException If a socket cannot be closed.
+     */
+    private void forceCloseClients() throws IOException {
+        for (Reduction reduction : this.runningReductions.values()) {
+            reduction.cancel();
+        }
+        this.runningReductions.clear();
+        for (SocketChannel client : new ArrayList<>(this.clientStore.clients)) {
+            Date initialConnect = this.clientStore.getInitialConnectTime(client);
+            String name = this.clientStore.getName(client);
+            long connectionTime = this.calculateDuration(initialConnect);
+            client.close();
+            this.clientStore.removeClient(client);
+            if (this.capture != null) {
+                this.capture.closed(client);
+            }
+            this.serverLogger.log(Level.INFO, "Forced disconnection with client \"" + name + "\". Duration of connection: " + connectionTime + " seconds.");
+            System.out.println("Client \"" + name + "'s socket closed... Duration: " + connectionTime + " seconds.");
+        }
+    }
+
+    /**
+     * Runs on the event loop while draining. Closes the listening channels, then closes every client that has no partial command and no running reduction.
+     * Once no client is left, signals the ShutdownHook that the server is drained.
+     *
+     * @throws IOException If a channel cannot be closed.
+     */
+    private void drain() throws IOException {
+        boolean clientsLeft = false;
+        for (SelectionKey key : this.selector.keys()) {
+            if (!key.isValid()) {
+                continue;
+            }
+            if (!(key.channel() instanceof SocketChannel)) {
+                // Listening channel, another process sharing the port (or the Unix domain socket) will get the new connections
+                key.channel().close();
+                continue;
+            }
+
+            SocketChannel client = (SocketChannel) key.channel();
+            if (this.runningReductions.containsKey(client) || this.clientStore.hasPartialCommand(client)) {
+                clientsLeft = true;
+                continue;
+            }
+            String name = this.clientStore.getName(client);
+            Date initialConnect = this.clientStore.getInitialConnectTime(client);
+            client.close();
+            this.clientStore.removeClient(client);
+            if (this.capture != null) {
+                this.capture.closed(client);
+            }
+            if (initialConnect != null) {
+                long connectionTime = calculateDuration(initialConnect);
+                System.out.println("Client \"" + name + "\" closed while draining. Duration: " + connectionTime + " seconds.");
+                serverLogger.log(Level.INFO, "Client \"" + name + "\" closed while draining. Duration of connection: " + connectionTime + " seconds.");
+            }
+        }
+        if (!clientsLeft) {
+            this.drained.countDown();
+        }
+    }
+
+    /**
+     * Receives a single datagram and responds to the math command it holds. Datagrams are stateless, so no <code>hello</code> or <code>exit</code> is needed, and only <code>math</code> commands are accepted.
+     * A datagram that cannot be decoded or unmarshalled is answered with <code>Invalid command format</code>.
+     *
+     * @param channel Channel on which the datagram arrived.
+     * @throws IOException If the datagram cannot be received.
+     */
+    private void handleDatagram(DatagramChannel channel) throws IOException {
+        RequestTrace trace = this.trace;
+        trace.reset();
+        trace.begin(RequestTrace.FRAMING);
+        ByteBuffer buffer = ByteBuffer.allocate(2048);
+        SocketAddress sender = channel.receive(buffer);
+        if (sender == null) {
+            return;
+        }
+        buffer.flip();
+
+        // Anyone can send a datagram, so a malformed one must only fail its own request, never the event loop
+        Map<String, String> request;
+        try {
+            String command = StandardCharsets.UTF_8.newDecoder().decode(buffer).toString();
+            trace.begin(RequestTrace.UNMARSHAL);
+            request = Protocol.unmarshal(command);
+        } catch (CharacterCodingException | RuntimeException e) {
+            request = null;
+        }
+        trace.begin(RequestTrace.EVALUATE);
+        String response;
+        if (request == null) {
+            response = "Invalid command format";
+        } else if (!"math".equals(request.get("cmd"))) {
+            response = "Unknown command";
+        } else if (request.get("eq") == null) {
+            response = "Invalid command format";
+        } else {
+            response = evaluateEquation(request.get("eq"));
+        }
+        trace.begin(RequestTrace.WRITE);
+        try {
+            channel.send(buildDatagramResponse(response, request == null ? null : request.get("id")), sender);
+        } catch (IOException e) {
+            // The sender address may be forged or unreachable, drop the response
+            serverLogger.log(Level.WARNING, "Could not send response to datagram from {" + sender + "}. Exception: " + e);
+        }
+        String cmd = request == null ? null : request.get("cmd");
+        String eq = request == null ? null : request.get("eq");
+        trace.begin(RequestTrace.LOG);
+        serverLogger.log(Level.INFO, "Datagram from {" + sender + "} entered equation : " + eq + ". Response : " + response);
+        System.out.println("Datagram from {" + sender + "} entered equation : " + eq + ". Response : " + response);
+        this.finishTrace(trace, sender.toString(), cmd, eq);
+    }
+
+    /**
+     * Deletes the file of the Unix domain socket, if the server listens on one, so that the next server can bind to it.
+     * The file is left alone if another server has replaced it since, which happens during a rolling restart.
+     */
+    public void deleteUnixSocket() {
+        if (this.unixSocketFileKey != null) {
+            try {
+                if (this.unixSocketFileKey.equals(Files.readAttributes(UNIX_SOCKET_PATH, BasicFileAttributes.class).fileKey())) {
+                    Files.delete(UNIX_SOCKET_PATH);
+                }
+            } catch (IOException e) {
+                serverLogger.log(Level.WARNING, "Could not delete Unix domain socket " + UNIX_SOCKET_PATH + ". Exception: " + e);
+            }
+        }
+    }
+
+    /**
+     * Handles every complete (new-line terminated) command a client has sent. Stops early while a reduction is running for this client, so that responses are sent in the order the commands arrived.
+     *
+     * @param client Client whose commands must be handled.
+     * @param trace  Trace whose framing phase began when the client's bytes were read, or <code>null</code> if none were just read, in which case each command's trace starts when its bytes were read.
+     * @throws IOException If the server cannot send a response to the client.
+     */
+    private void handleCommands(SocketChannel client, RequestTrace trace) throws IOException {
+        String command;
+        while (client.isOpen() && !this.runningReductions.containsKey(client)) {
+            if (trace == null) {
+                trace = this.trace;
+                trace.reset();
+                trace.begin(RequestTrace.FRAMING);
+            }
+            if ((command = this.clientStore.nextCommand(client)) == null) {
+                break;
+            }
+            this.handleCommand(client, command, trace);
+            trace = null;
+        }
+    }
+
+    /**
+     * Parses a single command from a client and responds to it.
+     *
+     * @param client  Client who sent the command.
+     * @param command Complete, new-line terminated command.
+     * @param trace   Trace of the command, in its framing phase.
+     * @throws IOException If the server cannot send a response to the client.
+     */
+    private void handleCommand(SocketChannel client, String command, RequestTrace trace) throws IOException {
+        // Parse request
+        String name = this.clientStore.getName(client);
+        // Taken for every command, so that the arrivals of the next commands stay aligned with them. A command that was queued behind others is traced from its arrival
+        long arrival = this.clientStore.nextArrival(client);
+        trace.startAt(arrival);
+        trace.begin(RequestTrace.UNMARSHAL);
+        Map<String, String> request;
+        try {
+            request = Protocol.unmarshal(command);
+        } catch (RuntimeException e) {
+            // A line that is not made of key=value pairs must only fail this command, never the event loop
+            trace.begin(RequestTrace.WRITE);
+            client.write(buildServerResponse("Invalid command format"));
+            trace.begin(RequestTrace.LOG);
+            serverLogger.log(Level.INFO, "Client \"" + name + "\" sent an invalid command format: " + command.trim());
+            this.finishTrace(trace, name, null, null);
+            return;
+        }
+        trace.end();
+        if (this.capture != null && ("hello".equals(request.get("cmd")) || "math".equals(request.get("cmd")) || "exit".equals(request.get("cmd")))) {
+            this.capture.frame(client, command, arrival);
+        }
+        try {
+            switch (request.get("cmd")) {
+                case "hello": {
+                    // Open connection with client
+                    name = request.get("name");
+                    String remoteAddress = client.getRemoteAddress().toString();
+                    trace.begin(RequestTrace.WRITE);
+                    client.write(buildClientHelloACK(request.get("name")));
+                    trace.end();
+                    this.clientStore.addClient(client, request.get("name"));
+                    trace.begin(RequestTrace.LOG);
+                    System.out.println("Client \"" + request.get("name") + "\" at IP/Port# {" + remoteAddress + "} connected to the server.");
+                    serverLogger.log(Level.INFO, "Client \"" + request.get("name") + "\" connected. IP/Port#: {" + remoteAddress + "}");
+                    break;
+                }
+                case "math": {
+                    // Evaluate equation from client
+                    trace.begin(RequestTrace.EVALUATE);
+                    String equationResponse = evaluateEquation(request.get("eq"));
+                    trace.begin(RequestTrace.WRITE);
+                    client.write(buildServerResponse(equationResponse));
+                    trace.begin(RequestTrace.LOG);
+                    serverLogger.log(Level.INFO, "Client \"" + name + "\" entered equation : " + request.get("eq") + ". Response : " + equationResponse);
+                    System.out.println("Client \"" + name + "\" entered equation : " + request.get("eq") + ". Response : " + equationResponse);
+                    break;
+                }
+                case "reduce": {
+                    // Reduce a term over a range of integers on the fork/join pool, the response is sent and the trace finished once it finishes
+                    trace.begin(RequestTrace.EVALUATE);
+                    if (this.startReduction(client, request, trace)) {
+                        return;
+                    }
+                    break;
+                }
+                case "exit": {
+                    // Close connection with client
+                    trace.begin(RequestTrace.WRITE);
+                    client.write(buildClientExitACK(request.get("name")));
+                    trace.end();
+                    Date initialConnect = this.clientStore.getInitialConnectTime(client);
+                    long connectionTime = calculateDuration(initialConnect);
+                    client.close();
+                    this.clientStore.removeClient(client);
+                    if (this.capture != null) {
+                        this.capture.closed(client);
+                    }
+
+                    trace.begin(RequestTrace.LOG);
+                    System.out.println("Client \"" + name + "\" disconnected. Duration: " + connectionTime + " seconds.");
+                    serverLogger.log(Level.INFO, "Client \"" + name + "\" disconnected. Duration of connection: " + connectionTime + " seconds.");
+                    break;
+                }
+                default: {
+                    // Unknown command
+                    trace.begin(RequestTrace.WRITE);
+                    client.write(buildServerResponse("Unknown command"));
+                    trace.begin(RequestTrace.LOG);
+                    serverLogger.log(Level.INFO, "Client \"" + name + "\" entered unknown command: " + request.get("cmd"));
+                    System.out.println("Client \"" + name + "\" entered unknown command: " + request.get("cmd"));
+                    break;
+                }
+            }
+        } catch (NullPointerException e) {
+            // Could happen if a client does not provide an expected key
+            trace.begin(RequestTrace.WRITE);
+            client.write(buildServerResponse("Invalid command format"));
+            trace.begin(RequestTrace.LOG);
+            serverLogger.log(Level.INFO, "Client \"" + name + "\" sent an invalid command format: " + Protocol.marshal(request));
+        }
+        this.finishTrace(trace, name, request.get("cmd"), request.get("eq"));
+    }
+
+    /**
+     * Commits the Java Flight Recorder events of a request, then writes it to the slow-request log if it took too long and is sampled.
+     *
+     * @param trace      Trace of the request, which ends its current phase.
+     * @param connection Name of the client, or the address a datagram came from.
+     * @param command    Value of the <code>cmd</code> key of the request.
+     * @param expression Expression sent with the command, or <code>null</code> if there was none.
+     */
+    private void finishTrace(RequestTrace trace, String connection, String command, String expression) {
+        trace.commit(connection, command, expression);
+        if (SLOW_REQUEST_MICROS < 0) {
+            return;
+        }
+        long elapsed = trace.elapsed();
+        if (elapsed < SLOW_REQUEST_MICROS * 1000 || this.slowRequests++ % SLOW_REQUEST_SAMPLE != 0) {
+            return;
+        }
+
+        StringBuilder phases = new StringBuilder();
+        long other = elapsed;
+        for (int phase = 0; phase < RequestTrace.PHASES.length; phase++) {
+            phases.append(RequestTrace.PHASES[phase]).append(' ').append(trace.getNanos(phase) / 1000).append(" us, ");
+            other -= trace.getNanos(phase);
+        }
+        phases.append("other ").append(other / 1000).append(" us");
+        slowRequestLogger.log(Level.WARNING, "Client \"" + connection + "\" sent " + command + " taking " + elapsed / 1000 + " us (" + phases + "). Expression : " + expression);
+    }
+
+    /**
+     * Parses a reduce command and submits it to the fork/join pool. Once it finishes, the reduction is queued in <code>finishedReductions</code> and the selector is woken up to send the response.
+     * A submitted reduction keeps the trace, which stays in its evaluate phase until <code>finishReduction</code>, and the event loop moves on to a new one.
+     *
+     * @param client  Client who sent the reduce command.
+     * @param request Unmarshalled reduce command.
+     * @param trace   Trace of the reduce command, in its evaluate phase.
+     * @return Whether the reduction was submitted, otherwise an error response was sent and the trace must still be finished.
+     * @throws IOException If the server cannot send an error response to the client.
+     */
+    private boolean startReduction(SocketChannel client, Map<String, String> request, RequestTrace trace) throws IOException {
+        Reduction reduction;
+        try {
+            reduction = new Reduction(client, request.get("op"), request.get("eq"), request.get("from"), request.get("to"), REDUCE_MAX_TERMS);
+        } catch (IllegalArgumentException e) {
+            trace.begin(RequestTrace.WRITE);
+            client.write(buildServerResponse(e.getMessage()));
+            trace.begin(RequestTrace.LOG);
+            serverLogger.log(Level.INFO, "Client \"" + this.clientStore.getName(client) + "\" entered reduce : " + request.get("op") + " " + request.get("eq") + " for i in " + request.get("from") + ".." + request.get("to") + ". Response : " + e.getMessage());
+            return false;
+        }
+
+        reduction.trace = trace;
+        this.trace = new RequestTrace();
+        this.runningReductions.put(client, reduction);
+        CompletableFuture.supplyAsync(reduction::evaluate, this.reducePool).whenComplete((response, e) -> {
+            reduction.response = e == null ? response : "Error - Failed to evaluate reduction. {" + e.getCause() + "}";
+            this.finishedReductions.add(reduction);
+            this.selector.wakeup();
+        });
+        return true;
+    }
+
+    /**
+     * Sends the result of a finished reduction to its client and finishes its trace, then handles the commands the client sent while the reduction was running.
+     *
+     * @param reduction Reduction that just finished.
+     * @throws IOException If the server cannot send the response to the client.
+     */
+    private void finishReduction(Reduction reduction) throws IOException {
+        // The client left while the reduction was running, nobody is waiting for the response
+        if (reduction.isCancelled() || !reduction.client.isOpen()) {
+            return;
+        }
+        this.runningReductions.remove(reduction.client);
+
+        SocketChannel client = reduction.client;
+        RequestTrace trace = reduction.trace;
+        String description = reduction.getOperation() + " " + reduction.equation + " for i in " + reduction.from + ".." + reduction.to;
+        trace.begin(RequestTrace.WRITE);
+        client.write(buildServerResponse(reduction.response));
+        trace.begin(RequestTrace.LOG);
+        serverLogger.log(Level.INFO, "Client \"" + this.clientStore.getName(client) + "\" entered reduce : " + description + ". Response : " + reduction.response);
+        System.out.println("Client \"" + this.clientStore.getName(client) + "\" entered reduce : " + description + ". Response : " + reduction.response);
+        this.finishTrace(trace, this.clientStore.getName(client), "reduce", reduction.equation);
+        this.handleCommands(client, null);
+    }
+
+    /**
+     * Closes the connection with a client that left without sending an exit command, and cancels its running reduction, if any.
+     *
+     * @param client Client who left.
+     * @throws IOException If the socket cannot be closed.
+     */
+    private void disconnectClient(SocketChannel client) throws IOException {
+        Reduction reduction = this.runningReductions.remove(client);
+        if (reduction != null) {
+            reduction.cancel();
+        }
+
+        String name = this.clientStore.getName(client);
+        Date initialConnect = this.clientStore.getInitialConnectTime(client);
+        client.close();
+        this.clientStore.removeClient(client);
+        if (this.capture != null) {
+            this.capture.closed(client);
+        }
+
+        if (initialConnect != null) {
+            long connectionTime = calculateDuration(initialConnect);
+            System.out.println("Client \"" + name + "\" left without exiting. Duration: " + connectionTime + " seconds.");
+            serverLogger.log(Level.INFO, "Client \"" + name + "\" left without exiting. Duration of connection: " + connectionTime + " seconds." + (reduction != null ? " Cancelled running reduction." : ""));
         }
     }
 
@@ -312,14 +953,22 @@ public class TCPServer {
      *
      * @param client Client from which bytes must be read.
      * @param size   Size of the buffer into which all available bytes will be read.
-     * @return Converted string from the buffer.
-     * @throws IOException If the socket can no longer be read from.
+     * @return Converted string from the buffer, or <code>null</code> if the client closed the connection.
+     * @throws IOException Declared by the decoder, not thrown in practice as invalid bytes are replaced.
      */
     private String readFromBuffer(SocketChannel client, int size) throws IOException {
         ByteBuffer buffer = ByteBuffer.allocate(size);
-        client.read(buffer);
+        try {
+            if (client.read(buffer) == -1) {
+                return null;
+            }
+        } catch (IOException e) {
+            // Connection reset by the client
+            return null;
+        }
         buffer.flip();
-        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+        // Invalid bytes are replaced rather than thrown, the equation parser then rejects them as unrecognized symbols
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
         return (decoder.decode(buffer)).toString();
     }
 
@@ -347,6 +996,22 @@ public class TCPServer {
         return ByteBuffer.wrap(Protocol.marshal(mapResponse).getBytes(StandardCharsets.UTF_8));
     }
 
+    /**
+     * Builds a marshalled response to a math command sent in a datagram. The request's <code>id</code> is echoed, so that the client can tell it apart from a late response to an earlier datagram.
+     *
+     * @param response Result after evaluating the math expression to be sent to the client.
+     * @param id       Value of the request's <code>id</code> key, or <code>null</code> if it had none.
+     * @return Marshalled math response, ready to be directly sent.
+     */
+    public ByteBuffer buildDatagramResponse(String response, String id) {
+        Map<String, String> mapResponse = new HashMap<>();
+        mapResponse.put("resp", response);
+        if (id != null) {
+            mapResponse.put("id", id);
+        }
+        return ByteBuffer.wrap(Protocol.marshal(mapResponse).getBytes(StandardCharsets.UTF_8));
+    }
+
     /**
      * Builds a marshalled response to a client's math command.
      *
@@ -359,13 +1024,29 @@ public class TCPServer {
         return ByteBuffer.wrap(Protocol.marshal(mapResponse).getBytes(StandardCharsets.UTF_8));
     }
 
+    /**
+     * Determines if a file is a Unix domain socket, without following symbolic links.
+     *
+     * @param path Path of the file, which must exist.
+     * @return True if the file is a socket, false otherwise.
+     * @throws IOException If the file's attributes cannot be read.
+     */
+    private static boolean isSocket(Path path) throws IOException {
+        if (path.getFileSystem().supportedFileAttributeViews().contains("unix")) {
+            // File type bits of st_mode, S_IFSOCK for sockets
+            return ((Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS) & 0170000) == 0140000;
+        }
+        // Without the unix attribute view, e.g. on Windows, sockets are only known to be neither files, directories, nor links
+        return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+    }
+
     /**
      * Determines if a given character is a numerical digit. Used in parsing an input from client.
      *
      * @param d Character to be analyzed.
      * @return True if the character is a digit, false otherwise.
      */
-    public boolean isDigit(char d) {
+    public static boolean isDigit(char d) {
         return d >= 48 && d <= 57;
     }
 
@@ -376,7 +1057,7 @@ public class TCPServer {
      * @param op Character to be analyzed.
      * @return True if the character is a supported operation symbol, false otherwise.
      */
-    public boolean isOperation(char op) {
+    public static boolean isOperation(char op) {
         return op == '*' || op == '/' || op == '+' || op == '-' || op == '%' || op == '^' || op == '!';
     }
 
@@ -396,10 +1077,11 @@ public class TCPServer {
      * @param equation A string input from the client to be parsed and solved.
      * @return The result of the equation, or an error message if the equation couldn't be parsed or solved.
      */
-    public String evaluateEquation(String equation) {
-        String arg1 = "";
+    public static String evaluateEquation(String equation) {
+        // The arguments are tracked as ranges of the equation, arg1 is [0, arg1End) and arg2 is [nextIndex, arg2End)
+        int arg1End = 0;
         char operator = '#';
-        String arg2 = "";
+        int arg2End = 0;
 
         int nextIndex = 0;
         boolean foundDecimal = false;
@@ -408,14 +1090,14 @@ public class TCPServer {
         // Parsing first argument and the operator
         for (int i = 0; i < equation.length(); i++) {
             if (isDigit(equation.charAt(i))) {
-                arg1 += equation.charAt(i);               // Append digit to first argument
+                arg1End = i + 1;                          // Append digit to first argument
             } else if (equation.charAt(i) == '.') {
                 if (foundDecimal == false) {
                     foundDecimal = true;
-                    arg1 += equation.charAt(i);           // Appends decimal to argument, but only if it's the first decimal found in this number
+                    arg1End = i + 1;                      // Appends decimal to argument, but only if it's the first decimal found in this number
                 } else {
-                    arg1 += equation.charAt(i);
-                    errorMessage = "Error - Too many decimal points in first argument. {" + arg1 + "}";
+                    arg1End = i + 1;
+                    errorMessage = "Error - Too many decimal points in first argument. {" + equation.substring(0, arg1End) + "}";
                 }
             } else if (isOperation(equation.charAt(i))) {
                 operator = equation.charAt(i);
@@ -435,18 +1117,19 @@ public class TCPServer {
         }
 
         foundDecimal = false;       // Resets count for the second argument
+        arg2End = nextIndex;
 
         // Parsing second argument
         for (int i = nextIndex; i < equation.length(); i++) {
             if (isDigit(equation.charAt(i))) {
-                arg2 += equation.charAt(i);
+                arg2End = i + 1;
             } else if (equation.charAt(i) == '.') {
                 if (foundDecimal == false) {
                     foundDecimal = true;
-                    arg2 += equation.charAt(i);
+                    arg2End = i + 1;
                 } else {
-                    arg2 += equation.charAt(i);
-                    errorMessage = "Error - Too many decimal points in second argument. {" + arg2 + "}";
+                    arg2End = i + 1;
+                    errorMessage = "Error - Too many decimal points in second argument. {" + equation.substring(nextIndex, arg2End) + "}";
                 }
             } else if (isOperation(equation.charAt(i))) {
                 errorMessage = "Error - Too many operators. {" + operator + ", " + equation.charAt(i) + "}";
@@ -460,8 +1143,8 @@ public class TCPServer {
             }
         }
 
-        if (operator == '!' && arg2 != "") {
-            errorMessage = "Error - Found second argument for factorial. {" + arg2 + "} Please use only one integer argument, followed by '!'.";
+        if (operator == '!' && arg2End > nextIndex) {
+            errorMessage = "Error - Found second argument for factorial. {" + equation.substring(nextIndex, arg2End) + "} Please use only one integer argument, followed by '!'.";
         }
 
 
@@ -469,11 +1152,11 @@ public class TCPServer {
             return (errorMessage); // If error occured, return it instead of result
         }
 
-        // Try to parse doubles from the arguments
+        // Try to parse doubles from the arguments, without copying them out of the equation
         double argd1, argd2;
 
         try {
-            argd1 = Double.parseDouble(arg1);
+            argd1 = DoubleCodec.parse(equation, 0, arg1End);
         } catch (Exception e) {
             errorMessage = "Error - Failed to parse double from arg1. {" + e + "}";
             return errorMessage;
@@ -481,7 +1164,7 @@ public class TCPServer {
 
         if (operator != '!') {
             try {
-                argd2 = Double.parseDouble(arg2);
+                argd2 = DoubleCodec.parse(equation, nextIndex, arg2End);
             } catch (Exception e) {
                 errorMessage = "Error - Failed to parse double from arg2. {" + e + "}";
                 return errorMessage;
@@ -531,6 +1214,6 @@ public class TCPServer {
                 errorMessage = "Error - Unrecognized operator in evaluation step. {" + operator + "}";
                 return errorMessage;
         }
-        return Double.toString(resultd);
+        return DoubleCodec.format(resultd);
     }
 }
@@ -0,0 +1,201 @@
+package server;
+
+import lib.Capture;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class to record the commands clients send to the server in a capture file, in the format of {@link Capture}, so that they can be replayed later.
+ * The event loop only hands each command to a bounded queue, and a background thread writes them to the file. If the queue is full, e.g. because the disk cannot keep up, commands are dropped rather than slowing the event loop down.
+ */
+public class TrafficCapture {
+    /**
+     * Maximum number of records waiting to be written before new ones are dropped.
+     */
+    private static final int QUEUE_CAPACITY = 1 << 16;
+
+    /**
+     * Size in bytes of the buffer used to write the capture file.
+     */
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Class to hold a record until the background thread writes it.
+     */
+    private static class Captured {
+        /**
+         * Time at which the command was read, or the connection closed, from <code>System.nanoTime</code>.
+         */
+        final long nanos;
+
+        /**
+         * Number of the connection within this capture.
+         */
+        final int connection;
+
+        /**
+         * Command as the client sent it, or <code>null</code> if the connection was closed.
+         */
+        final String frame;
+
+        /**
+         * Creates a record of a command, or of a closed connection.
+         *
+         * @param nanos      Time at which the command was read, or the connection closed, from <code>System.nanoTime</code>.
+         * @param connection Number of the connection within this capture.
+         * @param frame      Command as the client sent it, or <code>null</code> if the connection was closed.
+         */
+        Captured(long nanos, int connection, String frame) {
+            this.nanos = nanos;
+            this.connection = connection;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * Put in the queue to stop the background thread once every record before it is written.
+     */
+    private static final Captured END = new Captured(0, -1, null);
+
+    /**
+     * Records waiting to be written. Filled by the event loop, emptied by the background thread.
+     */
+    private final BlockingQueue<Captured> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    /**
+     * Clients are mapped to the number of their connection within this capture. Only accessed by the event loop.
+     */
+    private final Map<SocketChannel, Integer> connections = new HashMap<>();
+
+    /**
+     * Number given to the next client that sends a command.
+     */
+    private int nextConnection;
+
+    /**
+     * Number of records dropped because the queue was full. Only incremented by the event loop.
+     */
+    private volatile long dropped;
+
+    /**
+     * Background thread writing the records to the capture file.
+     */
+    private final Thread writer;
+
+    /**
+     * Opens the capture file, appending a new segment to it if it already exists, and starts the background thread writing to it.
+     *
+     * @param path Path of the capture file.
+     * @throws IOException If the capture file cannot be opened.
+     */
+    public TrafficCapture(Path path) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND), OUTPUT_BUFFER_SIZE));
+        long start = System.nanoTime();
+        Capture.writeSegment(out, System.currentTimeMillis());
+        this.writer = new Thread(() -> this.write(out, start), "traffic-capture");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Records a command received from a client. Called by the event loop, never blocks.
+     *
+     * @param client Client who sent the command.
+     * @param frame  Command as the client sent it, including its <code>\n</code>.
+     * @param nanos  Time at which the bytes of the command were read, from <code>System.nanoTime</code>. Commands waiting behind a reduction are recorded after commands of other clients read later than them.
+     */
+    public void frame(SocketChannel client, String frame, long nanos) {
+        Integer connection = this.connections.get(client);
+        if (connection == null) {
+            connection = this.nextConnection++;
+            this.connections.put(client, connection);
+        }
+        this.offer(new Captured(nanos, connection, frame));
+    }
+
+    /**
+     * Records that a client's connection was closed, if the client had sent any recorded command. Called by the event loop, never blocks.
+     *
+     * @param client Client whose connection was closed.
+     */
+    public void closed(SocketChannel client) {
+        Integer connection = this.connections.remove(client);
+        if (connection != null) {
+            this.offer(new Captured(System.nanoTime(), connection, null));
+        }
+    }
+
+    /**
+     * @return Number of records dropped so far because the background thread could not keep up.
+     */
+    public long getDropped() {
+        return this.dropped;
+    }
+
+    /**
+     * Waits for the background thread to write every record queued so far, then closes the capture file. Records offered afterwards are dropped.
+     *
+     * @param timeoutMillis Maximum number of milliseconds to wait.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void close(long timeoutMillis) throws InterruptedException {
+        if (this.queue.offer(END, timeoutMillis, TimeUnit.MILLISECONDS)) {
+            this.writer.join(timeoutMillis);
+        }
+    }
+
+    /**
+     * Queues a record for the background thread without blocking the event loop, counting it as dropped if the queue is full.
+     *
+     * @param captured Record to queue.
+     */
+    private void offer(Captured captured) {
+        if (!this.queue.offer(captured)) {
+            this.dropped++;
+        }
+    }
+
+    /**
+     * Runs on the background thread. Writes records as they are queued, and flushes the file whenever the queue is empty, so that the file is never far behind.
+     *
+     * @param out   Stream of the capture file, closed once <code>END</code> is taken from the queue.
+     * @param start Time at which the segment started, from <code>System.nanoTime</code>.
+     */
+    private void write(DataOutputStream out, long start) {
+        long previous = start;
+        try (out) {
+            while (true) {
+                Captured captured = this.queue.poll();
+                if (captured == null) {
+                    out.flush();
+                    captured = this.queue.take();
+                }
+                if (captured == END) {
+                    return;
+                }
+                // Frames are timestamped when they were read but queued when they are handled, so time can go backwards between records
+                long deltaMicros = (captured.nanos - previous) / 1000;
+                previous += deltaMicros * 1000;
+                if (captured.frame == null) {
+                    Capture.writeClose(out, deltaMicros, captured.connection);
+                } else {
+                    Capture.writeFrame(out, deltaMicros, captured.connection, captured.frame.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            System.out.println("Traffic capture stopped: " + e);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package server;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Column loops for <code>+</code>, <code>-</code>, <code>*</code>, and <code>/</code> written with the <code>jdk.incubator.vector</code> API, so that they use the full SIMD width of the CPU whether or not the JIT compiler would have vectorized the scalar loops.
+ * Lanewise IEEE 754 addition, subtraction, multiplication, and division round exactly like their scalar counterparts, so the results are the same bit for bit.
+ * <code>%</code> and <code>^</code> are left to the scalar loops: the API has no floating-point remainder, and its <code>POW</code> is not guaranteed to match <code>Math.pow</code>.
+ * Only compiled and loaded with <code>--add-modules jdk.incubator.vector</code>, see {@link ColumnEvaluator}.
+ */
+class VectorColumnEvaluator implements ColumnEvaluator.Kernel {
+    /**
+     * Widest vector shape the CPU supports for doubles.
+     */
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    /**
+     * Applies an operator to each pair of operands with vectors as wide as <code>SPECIES</code>, and to the last pairs, which do not fill a vector, one at a time.
+     *
+     * @param operator Operator to apply.
+     * @param left     Column of first operands.
+     * @param right    Column of second operands.
+     * @param result   Column into which the results are written. May be the same array as one of the operands.
+     * @param length   Number of pairs of operands to evaluate.
+     * @return <code>false</code> if the operator is not supported, in which case nothing was evaluated.
+     */
+    @Override
+    public boolean evaluate(char operator, double[] left, double[] right, double[] result, int length) {
+        // One small method per operator: the JIT compiler only turns vector operations into SIMD instructions once they are inlined, with a constant operation
+        switch (operator) {
+            case '*':
+                multiply(left, right, result, length);
+                return true;
+            case '/':
+                divide(left, right, result, length);
+                return true;
+            case '+':
+                add(left, right, result, length);
+                return true;
+            case '-':
+                subtract(left, right, result, length);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Multiplies each first operand by its second operand, a vector at a time, then one pair at a time for the pairs that do not fill a vector.
+     *
+     * @param left   Column of first operands.
+     * @param right  Column of second operands.
+     * @param result Column into which the results are written.
+     * @param length Number of pairs of operands to evaluate.
+     */
+    private static void multiply(double[] left, double[] right, double[] result, int length) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, left, i).mul(DoubleVector.fromArray(SPECIES, right, i)).intoArray(result, i);
+        }
+        for (; i < length; i++) {
+            result[i] = left[i] * right[i];
+        }
+    }
+
+    /**
+     * Divides each first operand by its second operand, a vector at a time, then one pair at a time for the pairs that do not fill a vector.
+     *
+     * @param left   Column of first operands.
+     * @param right  Column of second operands.
+     * @param result Column into which the results are written.
+     * @param length Number of pairs of operands to evaluate.
+     */
+    private static void divide(double[] left, double[] right, double[] result, int length) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, left, i).div(DoubleVector.fromArray(SPECIES, right, i)).intoArray(result, i);
+        }
+        for (; i < length; i++) {
+            result[i] = left[i] / right[i];
+        }
+    }
+
+    /**
+     * Adds each pair of operands, a vector at a time, then one pair at a time for the pairs that do not fill a vector.
+     *
+     * @param left   Column of first operands.
+     * @param right  Column of second operands.
+     * @param result Column into which the results are written.
+     * @param length Number of pairs of operands to evaluate.
+     */
+    private static void add(double[] left, double[] right, double[] result, int length) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, left, i).add(DoubleVector.fromArray(SPECIES, right, i)).intoArray(result, i);
+        }
+        for (; i < length; i++) {
+            result[i] = left[i] + right[i];
+        }
+    }
+
+    /**
+     * Subtracts each second operand from its first operand, a vector at a time, then one pair at a time for the pairs that do not fill a vector.
+     *
+     * @param left   Column of first operands.
+     * @param right  Column of second operands.
+     * @param result Column into which the results are written.
+     * @param length Number of pairs of operands to evaluate.
+     */
+    private static void subtract(double[] left, double[] right, double[] result, int length) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, left, i).sub(DoubleVector.fromArray(SPECIES, right, i)).intoArray(result, i);
+        }
+        for (; i < length; i++) {
+            result[i] = left[i] - right[i];
+        }
+    }
+
+    /**
+     * @return Number of doubles in each vector.
+     */
+    @Override
+    public int lanes() {
+        return SPECIES.length();
+    }
+}